@@ -0,0 +1,52 @@
+package be.twofold.tinypng;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.*;
+import java.awt.image.*;
+import java.io.*;
+import java.util.concurrent.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class BufferedImageBenchmark {
+    @Param({"photo", "screenshot"})
+    public String content;
+
+    @Param({"512", "2048"})
+    public int size;
+
+    @Param({"TYPE_INT_ARGB", "TYPE_4BYTE_ABGR"})
+    public String type;
+
+    private BufferedImage image;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        PngFormat format = Rasters.format("RGB_ALPHA_8", size, size);
+        byte[] rgba = Rasters.create(format, content);
+
+        image = new BufferedImage(size, size, BufferedImage.class.getField(type).getInt(null));
+        int[] argb = new int[size * size];
+        for (int i = 0, o = 0; i < argb.length; i++, o += 4) {
+            argb[i] = (rgba[o + 3] & 0xff) << 24 | (rgba[o] & 0xff) << 16 | (rgba[o + 1] & 0xff) << 8 | (rgba[o + 2] & 0xff);
+        }
+        image.setRGB(0, 0, size, size, argb, 0, size);
+    }
+
+    @Benchmark
+    public void pngImages(ByteCounter counter) {
+        PngImages.write(image, OutputStream.nullOutputStream());
+        counter.bytes += 4L * size * size;
+    }
+
+    @Benchmark
+    public void imageIO(ByteCounter counter) throws IOException {
+        ImageIO.write(image, "png", OutputStream.nullOutputStream());
+        counter.bytes += 4L * size * size;
+    }
+}
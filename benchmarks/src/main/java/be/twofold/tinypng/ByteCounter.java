@@ -0,0 +1,17 @@
+package be.twofold.tinypng;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Counts the number of raw image bytes processed, which JMH reports as a rate
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class ByteCounter {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        bytes = 0;
+    }
+}
@@ -0,0 +1,34 @@
+package be.twofold.tinypng;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkWriterBenchmark {
+    @Param({"64", "8192", "32768", "262144"})
+    public int chunkSize;
+
+    private ChunkWriter writer;
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        writer = new ChunkWriter(OutputStream.nullOutputStream());
+        data = new byte[chunkSize];
+        new Random(42).nextBytes(data);
+    }
+
+    @Benchmark
+    public void writeChunk(ByteCounter counter) {
+        writer.writeChunk(ChunkType.IDAT, data, data.length);
+        counter.bytes += data.length;
+    }
+}
@@ -0,0 +1,37 @@
+package be.twofold.tinypng;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class EncoderBenchmark {
+    @Param({"photo", "screenshot", "noise"})
+    public String content;
+
+    @Param({"256", "2048", "8192"})
+    public int size;
+
+    private PngFormat format;
+    private byte[] image;
+
+    @Setup
+    public void setup() {
+        format = Rasters.format("RGB_ALPHA_8", size, size);
+        image = Rasters.create(format, content);
+    }
+
+    @Benchmark
+    public void encode(ByteCounter counter) {
+        try (PngEncoder encoder = new PngEncoder(OutputStream.nullOutputStream(), format)) {
+            encoder.writeHeader().writeImage(image);
+        }
+        counter.bytes += image.length;
+    }
+}
@@ -0,0 +1,43 @@
+package be.twofold.tinypng;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+import java.util.concurrent.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark {
+    @Param({"GRAY_1", "GRAY_8", "GRAY_16", "GRAY_ALPHA_8", "RGB_8", "RGB_16", "RGB_ALPHA_8", "RGB_ALPHA_16"})
+    public String type;
+
+    @Param({"photo", "screenshot"})
+    public String content;
+
+    @Param({"ADAPTIVE", "PAETH"})
+    public FilterStrategy strategy;
+
+    private PngFormat format;
+    private PngFilter filter;
+    private byte[] image;
+
+    @Setup
+    public void setup() {
+        format = Rasters.format(type, 1024, 256);
+        filter = new PngFilter(format, PngOptions.defaults().withFilterStrategy(strategy));
+        image = Rasters.create(format, content);
+    }
+
+    @Benchmark
+    public void filter(ByteCounter counter, Blackhole blackhole) {
+        int bytesPerRow = format.bytesPerRow();
+        for (int row = 0; row < format.height(); row++) {
+            blackhole.consume(filter.filter(image, row * bytesPerRow));
+        }
+        counter.bytes += image.length;
+    }
+}
@@ -0,0 +1,58 @@
+package be.twofold.tinypng;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IDATWriterBenchmark {
+    @Param({"photo", "screenshot", "noise"})
+    public String content;
+
+    @Param({"1", "6"})
+    public int level;
+
+    @Param({"ZLIB", "JAVA"})
+    public CompressorType compressor;
+
+    private PngFormat format;
+    private PngOptions options;
+    private Workspace workspace;
+    private byte[] filtered;
+
+    @Setup
+    public void setup() {
+        format = Rasters.format("RGB_ALPHA_8", 1024, 1024);
+        options = PngOptions.defaults().withCompressionLevel(level).withCompressorType(compressor);
+        workspace = new Workspace(options);
+
+        // Filter up front, so only the compression is measured
+        byte[] image = Rasters.create(format, content);
+        PngFilter filter = new PngFilter(format, options);
+        int bytesPerRow = format.bytesPerRow();
+        filtered = new byte[format.height() * (bytesPerRow + 1)];
+        for (int row = 0, o = 0; row < format.height(); row++, o += bytesPerRow + 1) {
+            filtered[o] = (byte) filter.filter(image, row * bytesPerRow);
+            System.arraycopy(filter.bestRow(), format.bytesPerPixel(), filtered, o + 1, bytesPerRow);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        workspace.close();
+    }
+
+    @Benchmark
+    public void write(ByteCounter counter) {
+        try (IDATWriter writer = new IDATWriter(new ChunkWriter(OutputStream.nullOutputStream()), workspace, format)) {
+            writer.write(filtered, 0, filtered.length);
+        }
+        counter.bytes += filtered.length;
+    }
+}
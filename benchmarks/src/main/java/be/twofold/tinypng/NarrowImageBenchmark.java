@@ -0,0 +1,43 @@
+package be.twofold.tinypng;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * Encodes narrow and tall images, where the per-row overhead outweighs the work on the row itself
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NarrowImageBenchmark {
+    @Param({"GRAY_8", "RGB_ALPHA_8"})
+    public String type;
+
+    @Param({"1", "16", "128"})
+    public int width;
+
+    @Param({"65536"})
+    public int height;
+
+    private PngFormat format;
+    private byte[] image;
+
+    @Setup
+    public void setup() {
+        format = Rasters.format(type, width, height);
+        image = Rasters.create(format, "photo");
+    }
+
+    @Benchmark
+    public void encode(ByteCounter counter) {
+        try (PngEncoder encoder = new PngEncoder(OutputStream.nullOutputStream(), format)) {
+            encoder.writeHeader().writeImage(image);
+        }
+        counter.bytes += image.length;
+    }
+}
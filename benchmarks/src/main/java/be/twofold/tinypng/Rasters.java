@@ -0,0 +1,65 @@
+package be.twofold.tinypng;
+
+import java.util.*;
+
+/**
+ * Synthetic images, so the benchmarks don't depend on files
+ */
+final class Rasters {
+    private Rasters() {
+    }
+
+    static byte[] create(PngFormat format, String content) {
+        byte[] image = new byte[format.bytesPerImage()];
+        int bytesPerRow = format.bytesPerRow();
+        Random random = new Random(42);
+        switch (content) {
+            case "photo":
+                // Smooth gradients with a bit of sensor noise
+                for (int y = 0, i = 0; y < format.height(); y++) {
+                    for (int x = 0; x < bytesPerRow; x++, i++) {
+                        image[i] = (byte) (x / 16 + y / 8 + random.nextInt(8));
+                    }
+                }
+                break;
+            case "screenshot":
+                // Flat areas with hard edges, and repeated rows
+                for (int y = 0, i = 0; y < format.height(); y++) {
+                    for (int x = 0; x < bytesPerRow; x++, i++) {
+                        int block = (x / 96 + y / 48) % 5;
+                        image[i] = (byte) (block == 0 ? 0xff : block * 37 + (x % 3) * 11);
+                    }
+                }
+                break;
+            case "noise":
+                random.nextBytes(image);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown content: " + content);
+        }
+        return image;
+    }
+
+    static PngFormat format(String type, int width, int height) {
+        switch (type) {
+            case "GRAY_1":
+                return PngFormat.of(width, height, BitDepth.ONE, ColorType.GRAY);
+            case "GRAY_8":
+                return PngFormat.of(width, height, BitDepth.EIGHT, ColorType.GRAY);
+            case "GRAY_16":
+                return PngFormat.of(width, height, BitDepth.SIXTEEN, ColorType.GRAY);
+            case "GRAY_ALPHA_8":
+                return PngFormat.of(width, height, BitDepth.EIGHT, ColorType.GRAY_ALPHA);
+            case "RGB_8":
+                return PngFormat.of(width, height, BitDepth.EIGHT, ColorType.RGB);
+            case "RGB_16":
+                return PngFormat.of(width, height, BitDepth.SIXTEEN, ColorType.RGB);
+            case "RGB_ALPHA_8":
+                return PngFormat.of(width, height, BitDepth.EIGHT, ColorType.RGB_ALPHA);
+            case "RGB_ALPHA_16":
+                return PngFormat.of(width, height, BitDepth.SIXTEEN, ColorType.RGB_ALPHA);
+            default:
+                throw new IllegalArgumentException("Unknown type: " + type);
+        }
+    }
+}
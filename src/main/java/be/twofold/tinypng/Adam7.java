@@ -0,0 +1,108 @@
+package be.twofold.tinypng;
+
+/**
+ * The geometry of the seven Adam7 passes, and the extraction of a pass row from a full row.
+ * <p>
+ * Whole-byte pixels are copied with a loop per pixel size, so the JIT sees a constant step.
+ * Only bit depths below 8 have to pick out single samples.
+ */
+final class Adam7 {
+    static final int Passes = 7;
+
+    private static final int[] StartX = {0, 4, 0, 2, 0, 1, 0};
+    private static final int[] StartY = {0, 0, 4, 0, 2, 0, 1};
+    private static final int[] StepX = {8, 8, 4, 4, 2, 2, 1};
+    private static final int[] StepY = {8, 8, 8, 4, 4, 2, 2};
+
+    private Adam7() {
+    }
+
+    static int width(PngFormat format, int pass) {
+        return Math.max(0, (format.width() - StartX[pass] + StepX[pass] - 1) / StepX[pass]);
+    }
+
+    static int height(PngFormat format, int pass) {
+        return Math.max(0, (format.height() - StartY[pass] + StepY[pass] - 1) / StepY[pass]);
+    }
+
+    /**
+     * Returns the row of the full image that holds the given row of the pass
+     */
+    static int sourceRow(int pass, int row) {
+        return StartY[pass] + row * StepY[pass];
+    }
+
+    /**
+     * Copies the pixels of a pass out of a full row
+     *
+     * @param src   The full row
+     * @param dst   The pass row
+     * @param pass  The pass, from 0 to 6
+     * @param width The number of pixels in the pass row
+     */
+    static void extract(PngFormat format, byte[] src, byte[] dst, int pass, int width) {
+        int bits = format.bitDepth().value() * format.colorType().samples();
+        if (bits < 8) {
+            extractBits(src, dst, StartX[pass], StepX[pass], width, bits);
+            return;
+        }
+
+        int bpp = bits / 8;
+        int step = StepX[pass] * bpp;
+        int start = StartX[pass] * bpp;
+        switch (bpp) {
+            case 1:
+                for (int i = 0, s = start; i < width; i++, s += step) {
+                    dst[i] = src[s];
+                }
+                break;
+            case 2:
+                for (int i = 0, s = start; i < width * 2; i += 2, s += step) {
+                    dst[i] = src[s];
+                    dst[i + 1] = src[s + 1];
+                }
+                break;
+            case 3:
+                for (int i = 0, s = start; i < width * 3; i += 3, s += step) {
+                    dst[i] = src[s];
+                    dst[i + 1] = src[s + 1];
+                    dst[i + 2] = src[s + 2];
+                }
+                break;
+            case 4:
+                for (int i = 0, s = start; i < width * 4; i += 4, s += step) {
+                    dst[i] = src[s];
+                    dst[i + 1] = src[s + 1];
+                    dst[i + 2] = src[s + 2];
+                    dst[i + 3] = src[s + 3];
+                }
+                break;
+            default:
+                for (int i = 0, s = start; i < width * bpp; i += bpp, s += step) {
+                    System.arraycopy(src, s, dst, i, bpp);
+                }
+                break;
+        }
+    }
+
+    private static void extractBits(byte[] src, byte[] dst, int start, int step, int width, int bits) {
+        int mask = (1 << bits) - 1;
+        int current = 0;
+        int o = 0;
+        int shift = 8 - bits;
+        for (int i = 0, x = start; i < width; i++, x += step) {
+            int bit = x * bits;
+            int sample = (src[bit >> 3] >> (8 - bits - (bit & 7))) & mask;
+            current |= sample << shift;
+            shift -= bits;
+            if (shift < 0) {
+                dst[o++] = (byte) current;
+                current = 0;
+                shift = 8 - bits;
+            }
+        }
+        if (shift != 8 - bits) {
+            dst[o] = (byte) current;
+        }
+    }
+}
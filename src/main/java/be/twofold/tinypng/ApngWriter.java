@@ -0,0 +1,228 @@
+package be.twofold.tinypng;
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * After writing the header of an animated PNG, this class will allow you to write its frames.
+ * <p>
+ * Every frame is passed in at full size, and compared to the one before it. Only the rectangle
+ * that changed is filtered and compressed, and an unchanged frame costs a single pixel.
+ * When every changed pixel is opaque, the frame is blended over the previous one, so the pixels
+ * inside the rectangle that did not change can be made fully transparent, which compresses better.
+ * <p>
+ * Frames are never disposed, the next frame is always drawn on top of the previous one.
+ * For bit depths below 8, whole rows are compared, so the rectangle always spans the full width.
+ */
+public final class ApngWriter {
+    private static final byte DisposeNone = 0;
+    private static final byte BlendSource = 0;
+    private static final byte BlendOver = 1;
+
+    private final PngFormat format;
+    private final ChunkWriter chunkWriter;
+    private final Workspace workspace;
+    private final boolean ownsWorkspace;
+    private final int frameCount;
+    private final byte[] previous;
+    private int framesWritten;
+    private int sequence;
+    private boolean aborted;
+
+    ApngWriter(PngFormat format, ChunkWriter chunkWriter, Workspace workspace, boolean ownsWorkspace, int frameCount) {
+        this.format = Objects.requireNonNull(format);
+        this.chunkWriter = Objects.requireNonNull(chunkWriter);
+        this.workspace = Objects.requireNonNull(workspace);
+        this.ownsWorkspace = ownsWorkspace;
+        this.frameCount = frameCount;
+        this.previous = new byte[format.bytesPerImage()];
+    }
+
+    /**
+     * Writes the next frame, and finishes the animation after the last one
+     *
+     * @param image            The full frame
+     * @param delayNumerator   The numerator of the time the frame is shown, in seconds
+     * @param delayDenominator The denominator of the time the frame is shown, in seconds, 0 means 100
+     */
+    public void writeFrame(byte[] image, int delayNumerator, int delayDenominator) {
+        if (aborted) {
+            throw new IllegalStateException("Animation has been aborted");
+        }
+        if (framesWritten == frameCount) {
+            throw new IllegalStateException("All " + frameCount + " frames have already been written");
+        }
+        if (image.length != format.bytesPerImage()) {
+            throw new IllegalArgumentException("image has wrong size, expected " + format.bytesPerImage() + " but was " + image.length);
+        }
+        if (delayNumerator < 0 || delayNumerator > 0xffff || delayDenominator < 0 || delayDenominator > 0xffff) {
+            throw new IllegalArgumentException("delay must fit in 16 bits");
+        }
+
+        if (framesWritten == 0) {
+            // The first frame is the default image, so it goes in IDAT chunks, and must cover the whole canvas
+            writeFCTL(format.width(), format.height(), 0, 0, delayNumerator, delayDenominator, BlendSource);
+            new PngWriter(format, chunkWriter, workspace, false).writeImage(image);
+        } else {
+            writeDelta(image, delayNumerator, delayDenominator);
+        }
+        System.arraycopy(image, 0, previous, 0, image.length);
+
+        framesWritten++;
+        if (framesWritten == frameCount && ownsWorkspace) {
+            workspace.close();
+        }
+    }
+
+    int frameCount() {
+        return frameCount;
+    }
+
+    int framesWritten() {
+        return framesWritten;
+    }
+
+    /**
+     * Gives up on the animation without writing anything more, and releases the workspace if the writer owns it
+     */
+    void abort() {
+        if (aborted || framesWritten == frameCount) {
+            return;
+        }
+        aborted = true;
+        if (ownsWorkspace) {
+            workspace.close();
+        }
+    }
+
+    private void writeDelta(byte[] image, int delayNumerator, int delayDenominator) {
+        int[] bounds = dirtyBounds(image);
+        int x = bounds[0];
+        int y = bounds[1];
+        int width = bounds[2] - x;
+        int height = bounds[3] - y;
+
+        byte[] frame = crop(image, x, y, width, height);
+        byte blend = BlendSource;
+        if (canBlendOver(image, x, y, width, height)) {
+            clearUnchanged(frame, x, y, width, height);
+            blend = BlendOver;
+        }
+
+        writeFCTL(width, height, x, y, delayNumerator, delayDenominator, blend);
+        new PngWriter(format.withSize(width, height), chunkWriter, workspace, false, () -> sequence++)
+            .writeImage(frame);
+    }
+
+    /**
+     * Returns the smallest rectangle, as {@code minX, minY, maxX, maxY} with the maximum exclusive,
+     * that holds all the pixels that changed. If nothing changed, a single pixel is returned.
+     */
+    private int[] dirtyBounds(byte[] image) {
+        int bytesPerRow = format.bytesPerRow();
+        int bytesPerPixel = format.bitDepth().value() >= 8 ? format.bytesPerPixel() : 0;
+        int minX = format.width();
+        int maxX = 0;
+        int minY = -1;
+        int maxY = 0;
+        for (int row = 0, o = 0; row < format.height(); row++, o += bytesPerRow) {
+            int first = Arrays.mismatch(image, o, o + bytesPerRow, previous, o, o + bytesPerRow);
+            if (first < 0) {
+                continue;
+            }
+            if (minY < 0) {
+                minY = row;
+            }
+            maxY = row + 1;
+            if (bytesPerPixel == 0) {
+                minX = 0;
+                maxX = format.width();
+                continue;
+            }
+
+            minX = Math.min(minX, first / bytesPerPixel);
+            int last = bytesPerRow - 1;
+            while (last >= maxX * bytesPerPixel && image[o + last] == previous[o + last]) {
+                last--;
+            }
+            maxX = Math.max(maxX, last / bytesPerPixel + 1);
+        }
+
+        if (minY < 0) {
+            return new int[]{0, 0, 1, 1};
+        }
+        return new int[]{minX, minY, maxX, maxY};
+    }
+
+    private byte[] crop(byte[] image, int x, int y, int width, int height) {
+        int bytesPerRow = format.bytesPerRow();
+        if (x == 0 && width == format.width()) {
+            return Arrays.copyOfRange(image, y * bytesPerRow, (y + height) * bytesPerRow);
+        }
+
+        int bytesPerPixel = format.bytesPerPixel();
+        int croppedBytesPerRow = width * bytesPerPixel;
+        byte[] result = new byte[height * croppedBytesPerRow];
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(image, (y + row) * bytesPerRow + x * bytesPerPixel, result, row * croppedBytesPerRow, croppedBytesPerRow);
+        }
+        return result;
+    }
+
+    /**
+     * Blending over the previous frame only gives the right result if every changed pixel is opaque,
+     * and it only helps if some pixels in the rectangle did not change
+     */
+    private boolean canBlendOver(byte[] image, int x, int y, int width, int height) {
+        ColorType colorType = format.colorType();
+        if (colorType != ColorType.GRAY_ALPHA && colorType != ColorType.RGB_ALPHA) {
+            return false;
+        }
+
+        int bytesPerRow = format.bytesPerRow();
+        int bytesPerPixel = format.bytesPerPixel();
+        int bytesPerChannel = format.bytesPerChannel();
+        boolean unchanged = false;
+        for (int row = y; row < y + height; row++) {
+            for (int i = row * bytesPerRow + x * bytesPerPixel, end = i + width * bytesPerPixel; i < end; i += bytesPerPixel) {
+                if (Arrays.equals(image, i, i + bytesPerPixel, previous, i, i + bytesPerPixel)) {
+                    unchanged = true;
+                    continue;
+                }
+                for (int a = i + bytesPerPixel - bytesPerChannel; a < i + bytesPerPixel; a++) {
+                    if (image[a] != (byte) 0xff) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return unchanged;
+    }
+
+    private void clearUnchanged(byte[] frame, int x, int y, int width, int height) {
+        int bytesPerRow = format.bytesPerRow();
+        int bytesPerPixel = format.bytesPerPixel();
+        for (int row = 0, o = 0; row < height; row++) {
+            for (int i = (y + row) * bytesPerRow + x * bytesPerPixel, end = i + width * bytesPerPixel; i < end; i += bytesPerPixel, o += bytesPerPixel) {
+                if (Arrays.equals(frame, o, o + bytesPerPixel, previous, i, i + bytesPerPixel)) {
+                    Arrays.fill(frame, o, o + bytesPerPixel, (byte) 0);
+                }
+            }
+        }
+    }
+
+    private void writeFCTL(int width, int height, int x, int y, int delayNumerator, int delayDenominator, byte blend) {
+        byte[] chunk = ByteBuffer.allocate(26)
+            .putInt(sequence++)
+            .putInt(width)
+            .putInt(height)
+            .putInt(x)
+            .putInt(y)
+            .putShort((short) delayNumerator)
+            .putShort((short) delayDenominator)
+            .put(DisposeNone)
+            .put(blend)
+            .array();
+        chunkWriter.writeChunk(ChunkType.fcTL, chunk);
+    }
+}
@@ -5,10 +5,16 @@ import java.nio.charset.*;
 enum ChunkType {
     IHDR,
     PLTE,
+    tRNS,
     IDAT,
+    acTL,
+    fcTL,
+    fdAT,
     IEND;
 
+    private final byte[] bytes = name().getBytes(StandardCharsets.US_ASCII);
+
     public byte[] bytes() {
-        return name().getBytes(StandardCharsets.US_ASCII);
+        return bytes;
     }
 }
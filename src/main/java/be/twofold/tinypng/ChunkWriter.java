@@ -1,17 +1,33 @@
 package be.twofold.tinypng;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 import java.util.zip.*;
 
+/**
+ * Writes chunks, either to an {@link OutputStream} or to a {@link WritableByteChannel}.
+ * <p>
+ * On a stream, the chunk header and CRC are written from reusable arrays. On a channel, the whole chunk
+ * is assembled in a reusable direct buffer, so it goes out in a single write, without the JDK copying
+ * the data into a temporary direct buffer first. Chunks that are too large to copy are written with a
+ * gathering write instead.
+ */
 final class ChunkWriter implements AutoCloseable {
     private static final byte[] Magic = new byte[]{(byte) 0x89, 0x50, 0x4e, 0x47, 0x0d, 0x0a, 0x1a, 0x0a};
+    private static final int MaxBufferSize = 1024 * 1024;
 
     private final CRC32 crc = new CRC32();
+    private final byte[] header = new byte[8];
+    private final byte[] trailer = new byte[4];
     private final OutputStream output;
+    private final WritableByteChannel channel;
+    private ByteBuffer chunk;
 
     ChunkWriter(OutputStream output) {
         this.output = Objects.requireNonNull(output);
+        this.channel = null;
         try {
             output.write(Magic);
         } catch (IOException e) {
@@ -19,36 +35,110 @@ final class ChunkWriter implements AutoCloseable {
         }
     }
 
+    ChunkWriter(WritableByteChannel channel) {
+        this.output = null;
+        this.channel = Objects.requireNonNull(channel);
+        try {
+            writeFully(ByteBuffer.wrap(Magic));
+        } catch (IOException e) {
+            throw new PngException("Failed to write magic", e);
+        }
+    }
+
     void writeChunk(ChunkType type, byte[] data) {
         writeChunk(type, data, data.length);
     }
 
     void writeChunk(ChunkType type, byte[] data, int length) {
+        byte[] typeBytes = type.bytes();
         crc.reset();
-        crc.update(type.bytes(), 0, 4);
+        crc.update(typeBytes, 0, 4);
         crc.update(data, 0, length);
+        writeChunk(type, data, length, (int) crc.getValue());
+    }
 
+    /**
+     * Writes a chunk whose CRC, over both the type and the data, was already computed by the caller
+     */
+    void writeChunk(ChunkType type, byte[] data, int length, int crc) {
+        byte[] typeBytes = type.bytes();
         try {
-            output.write(toBytesBE(length));
-            output.write(type.bytes());
-            output.write(data, 0, length);
-            output.write(toBytesBE((int) crc.getValue()));
+            if (channel != null) {
+                writeToChannel(typeBytes, data, length, crc);
+            } else {
+                writeToStream(typeBytes, data, length, crc);
+            }
         } catch (IOException e) {
             throw new PngException("Failed to write chunk", e);
         }
     }
 
-    private byte[] toBytesBE(int value) {
-        return new byte[]{
-            (byte) (value >> 24),
-            (byte) (value >> 16),
-            (byte) (value >> 8),
-            (byte) value
-        };
+    private void writeToStream(byte[] typeBytes, byte[] data, int length, int crc) throws IOException {
+        toBytesBE(length, header, 0);
+        System.arraycopy(typeBytes, 0, header, 4, 4);
+        toBytesBE(crc, trailer, 0);
+
+        output.write(header);
+        output.write(data, 0, length);
+        output.write(trailer);
+    }
+
+    private void writeToChannel(byte[] typeBytes, byte[] data, int length, int crc) throws IOException {
+        int size = length + 12;
+        if (size > MaxBufferSize && channel instanceof GatheringByteChannel) {
+            ByteBuffer[] buffers = {
+                ByteBuffer.allocate(8).putInt(length).put(typeBytes).flip(),
+                ByteBuffer.wrap(data, 0, length),
+                ByteBuffer.allocate(4).putInt(crc).flip()
+            };
+            while (buffers[2].hasRemaining()) {
+                ((GatheringByteChannel) channel).write(buffers);
+            }
+            return;
+        }
+
+        if (chunk == null || chunk.capacity() < size) {
+            chunk = ByteBuffer.allocateDirect(Math.max(size, 64 * 1024));
+        }
+        chunk.clear();
+        chunk.putInt(length)
+            .put(typeBytes)
+            .put(data, 0, length)
+            .putInt(crc)
+            .flip();
+        writeFully(chunk);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    void flush() {
+        if (output == null) {
+            return;
+        }
+        try {
+            output.flush();
+        } catch (IOException e) {
+            throw new PngException("Failed to flush", e);
+        }
+    }
+
+    private static void toBytesBE(int value, byte[] bytes, int offset) {
+        bytes[offset] = (byte) (value >> 24);
+        bytes[offset + 1] = (byte) (value >> 16);
+        bytes[offset + 2] = (byte) (value >> 8);
+        bytes[offset + 3] = (byte) value;
     }
 
     @Override
     public void close() throws IOException {
-        output.close();
+        if (channel != null) {
+            channel.close();
+        } else {
+            output.close();
+        }
     }
 }
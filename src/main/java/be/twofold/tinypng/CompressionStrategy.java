@@ -0,0 +1,33 @@
+package be.twofold.tinypng;
+
+import java.util.zip.*;
+
+/**
+ * The strategy used by the deflate compressor
+ */
+public enum CompressionStrategy {
+    /**
+     * The default strategy, using both string matching and Huffman coding
+     */
+    DEFAULT(Deflater.DEFAULT_STRATEGY),
+
+    /**
+     * Favors Huffman coding over string matching, which suits filtered image data
+     */
+    FILTERED(Deflater.FILTERED),
+
+    /**
+     * Only uses Huffman coding, without any string matching
+     */
+    HUFFMAN_ONLY(Deflater.HUFFMAN_ONLY);
+
+    private final int value;
+
+    CompressionStrategy(int value) {
+        this.value = value;
+    }
+
+    int value() {
+        return value;
+    }
+}
@@ -0,0 +1,41 @@
+package be.twofold.tinypng;
+
+/**
+ * Produces a zlib stream, the part of {@link java.util.zip.Deflater} that the IDAT writer relies on.
+ * <p>
+ * Input is handed over with {@link #setInput(byte[], int, int)}, and {@link #deflate(byte[], int, int)}
+ * is called until {@link #needsInput()} returns true. The input array must not be touched until then.
+ */
+interface Compressor {
+    void setInput(byte[] input, int offset, int length);
+
+    boolean needsInput();
+
+    /**
+     * Compresses what it can, and returns the number of compressed bytes written to the output
+     */
+    int deflate(byte[] output, int offset, int length);
+
+    /**
+     * Compresses all the input so far, and ends it on a byte boundary with an empty stored block.
+     * Keep calling this until it returns less than the length, to get all the output.
+     */
+    int flush(byte[] output, int offset, int length);
+
+    /**
+     * Marks the end of the input, after which {@link #deflate(byte[], int, int)} is called until {@link #finished()}
+     */
+    void finish();
+
+    boolean finished();
+
+    /**
+     * Starts a new stream for rows of the given format, keeping everything that was allocated
+     */
+    void reset(PngFormat format);
+
+    /**
+     * Releases the resources, after which the compressor can no longer be used
+     */
+    void end();
+}
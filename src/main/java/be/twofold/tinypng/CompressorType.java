@@ -0,0 +1,19 @@
+package be.twofold.tinypng;
+
+/**
+ * The implementation of deflate that compresses the image data
+ */
+public enum CompressorType {
+    /**
+     * The native zlib library that comes with the JDK, which supports every compression level and strategy,
+     * and compressing on multiple threads
+     */
+    ZLIB,
+
+    /**
+     * A deflate encoder in plain Java, made for filtered image data. It has a single fast level,
+     * so it ignores the compression level and strategy, except for level 0, which writes stored blocks.
+     * It compresses on a single thread, and never calls into native code.
+     */
+    JAVA
+}
@@ -0,0 +1,64 @@
+package be.twofold.tinypng;
+
+/**
+ * Combines CRC-32 checksums of consecutive pieces of data, in the same way zlib's {@code crc32_combine} does.
+ * <p>
+ * Appending {@code n} bytes to a CRC is a multiplication by {@code x^(8n)} modulo the CRC polynomial.
+ * That factor, the operator, only depends on the length, so it can be computed once and reused
+ * for every piece of the same length, which makes combining them a single multiplication.
+ */
+final class Crc32Combine {
+    private static final int Poly = 0xedb88320;
+    private static final int[] X2nTable = new int[32];
+
+    static {
+        int p = 1 << 30;
+        X2nTable[0] = p;
+        for (int n = 1; n < 32; n++) {
+            X2nTable[n] = p = multModP(p, p);
+        }
+    }
+
+    private Crc32Combine() {
+    }
+
+    /**
+     * Returns the CRC of the concatenation of two pieces of data, given the CRC of each piece
+     */
+    static int combine(int crc1, int crc2, long length2) {
+        return apply(operator(length2), crc1, crc2);
+    }
+
+    /**
+     * Returns the operator that appends a piece of the given length
+     */
+    static int operator(long length) {
+        int p = 1 << 31;
+        for (int k = 3; length != 0; length >>= 1, k++) {
+            if ((length & 1) != 0) {
+                p = multModP(X2nTable[k & 31], p);
+            }
+        }
+        return p;
+    }
+
+    static int apply(int operator, int crc1, int crc2) {
+        return multModP(operator, crc1) ^ crc2;
+    }
+
+    private static int multModP(int a, int b) {
+        int m = 1 << 31;
+        int p = 0;
+        while (true) {
+            if ((a & m) != 0) {
+                p ^= b;
+                if ((a & (m - 1)) == 0) {
+                    break;
+                }
+            }
+            m >>>= 1;
+            b = (b & 1) != 0 ? (b >>> 1) ^ Poly : b >>> 1;
+        }
+        return p;
+    }
+}
@@ -0,0 +1,41 @@
+package be.twofold.tinypng;
+
+/**
+ * The loops that score and write the filters of a row.
+ * <p>
+ * Rows start with {@code bpp} bytes of zeros, so the pixel to the left can always be read.
+ * The scores are the sum of the absolute residuals, as signed bytes. A scorer may stop as soon as
+ * the sum reaches the limit, and then returns some sum that is at least the limit.
+ * Below the limit, every implementation must return the exact same sum and write the exact same bytes.
+ */
+interface FilterKernels {
+    long sadNone(byte[] x, int start, int end, long limit);
+
+    long sadSub(byte[] x, int bpp, int end, long limit);
+
+    long sadUp(byte[] x, byte[] b, int start, int end, long limit);
+
+    long sadAverage(byte[] x, byte[] b, int bpp, int end, long limit);
+
+    /**
+     * Scores the Paeth filter, and writes its output at the same time.
+     * The output is only complete when the score is below the limit.
+     */
+    long sadPaeth(byte[] x, byte[] b, byte[] out, int bpp, int end, long limit);
+
+    void writeSub(byte[] x, byte[] out, int bpp, int end);
+
+    void writeUp(byte[] x, byte[] b, byte[] out, int start, int end);
+
+    void writeAverage(byte[] x, byte[] b, byte[] out, int bpp, int end);
+
+    void writePaeth(byte[] x, byte[] b, byte[] out, int bpp, int end);
+
+    /**
+     * Returns the fastest kernels for this JVM
+     */
+    static FilterKernels defaults() {
+        FilterKernels kernels = VectorSupport.filterKernels();
+        return kernels != null ? kernels : ScalarFilterKernels.Instance;
+    }
+}
@@ -0,0 +1,51 @@
+package be.twofold.tinypng;
+
+/**
+ * Specifies how the filter type is chosen for each row
+ */
+public enum FilterStrategy {
+    /**
+     * Always uses the None filter
+     */
+    NONE,
+
+    /**
+     * Always uses the Sub filter
+     */
+    SUB,
+
+    /**
+     * Always uses the Up filter
+     */
+    UP,
+
+    /**
+     * Always uses the Average filter
+     */
+    AVERAGE,
+
+    /**
+     * Always uses the Paeth filter
+     */
+    PAETH,
+
+    /**
+     * Picks the filter with the minimum sum of absolute differences, as recommended by the PNG specification
+     */
+    ADAPTIVE,
+
+    /**
+     * Picks the filter whose output has the lowest Shannon entropy
+     */
+    ENTROPY,
+
+    /**
+     * Compresses the output of every filter, and picks the one that compresses best.
+     * This is by far the slowest strategy.
+     */
+    BRUTE_FORCE;
+
+    boolean isFixed() {
+        return ordinal() <= PAETH.ordinal();
+    }
+}
@@ -1,35 +1,307 @@
 package be.twofold.tinypng;
 
 import java.util.*;
+import java.util.function.*;
 import java.util.zip.*;
 
+/**
+ * Compresses the filtered rows and cuts the result in IDAT chunks.
+ * <p>
+ * The CRC of each chunk is computed while the chunk is filled, right after deflate produced the bytes,
+ * instead of in a separate pass over the finished chunk. Compressed segments from the parallel deflater
+ * come with the CRCs of their blocks, which are combined instead of computed again.
+ * <p>
+ * Writes to the compressor are gathered in a staging buffer, so the filter type and the row that follows it
+ * cross into native code once per block of rows, instead of twice per row. The compressor is zlib by default,
+ * or the plain Java {@link ScanlineDeflater}, which only compresses on a single thread.
+ * <p>
+ * For the frames of an animation, the data goes in fdAT chunks instead, which start with a sequence number.
+ * Room for it is kept at the start of the buffer, and the number is only taken when the chunk is written.
+ * <p>
+ * At compression level 0, zlib is skipped entirely. The rows are copied straight into stored deflate
+ * blocks, which are sized so they never cross a chunk boundary, and the Adler-32 is computed alongside.
+ * <p>
+ * An image that is built as a complete zlib stream up front, like a {@link UniformImage}, replaces
+ * whatever the compressor would have written.
+ */
 final class IDATWriter implements AutoCloseable {
-    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
-    private final byte[] buffer = new byte[32 * 1024];
+    static final int CrcBlockSize = 4096;
+    private static final int CrcBlockOperator = Crc32Combine.operator(CrcBlockSize);
+    private static final int MaxStoredSize = 65535;
+    private static final int StoredHeaderSize = 5;
+
+    private final Compressor compressor;
+    private final ParallelDeflater parallel;
+    private final Adler32 stored;
+    private int blockStart = -1;
+    private boolean complete;
+    private final byte[] stage;
+    private int staged;
+    private final byte[] buffer;
     private final byte[] single = new byte[1];
-    private int length = 0;
+    private final IntSupplier sequence;
+    private final int headerSize;
+    private int length;
+    private int chunksWritten;
+
+    // The CRC of the chunk data so far, and of the bytes added after it that have not been folded in yet
+    private final CRC32 pending = new CRC32();
+    private final CRC32 header = new CRC32();
+    private int pendingLength;
+    private int crc;
 
     private final ChunkWriter chunkWriter;
 
-    IDATWriter(ChunkWriter chunkWriter) {
+    // Only set when there is a listener, every measurement is guarded by a null check
+    private final PngMetrics metrics;
+    private final PngListener listener;
+    private int rawBytes;
+
+    IDATWriter(ChunkWriter chunkWriter, Workspace workspace, PngFormat format) {
+        this(chunkWriter, workspace, format, null, null);
+    }
+
+    /**
+     * Creates a writer for the frame data of an animation, which is written in fdAT chunks
+     *
+     * @param sequence Hands out the sequence number of each fdAT chunk, or {@code null} to write IDAT chunks
+     * @param metrics  The metrics to update, or {@code null} if there is no listener
+     */
+    IDATWriter(ChunkWriter chunkWriter, Workspace workspace, PngFormat format, IntSupplier sequence, PngMetrics metrics) {
         this.chunkWriter = Objects.requireNonNull(chunkWriter);
+        this.metrics = metrics;
+        this.listener = metrics != null ? workspace.options().listener().orElseThrow() : null;
+        this.buffer = workspace.buffer();
+        this.sequence = sequence;
+        this.headerSize = sequence != null ? 4 : 0;
+        this.length = headerSize;
+        if (buffer.length <= headerSize) {
+            throw new PngException("idatSize must be greater than " + headerSize + " for animation frames");
+        }
+
+        PngOptions options = workspace.options();
+        if (options.compressionLevel() == Deflater.NO_COMPRESSION && buffer.length > headerSize + StoredHeaderSize) {
+            this.compressor = null;
+            this.parallel = null;
+            this.stored = new Adler32();
+            this.stage = null;
+            writeCompressed(new byte[]{0x78, 0x01}, 0, 2);
+        } else if (options.threads() > 1 && options.compressorType() == CompressorType.ZLIB) {
+            this.compressor = null;
+            this.parallel = new ParallelDeflater(this, options);
+            this.stored = null;
+            this.stage = null;
+        } else {
+            this.compressor = workspace.compressor(format);
+            this.parallel = null;
+            this.stored = null;
+            this.stage = workspace.stage();
+        }
     }
 
     void write(byte value) {
+        if (metrics != null) {
+            rawBytes++;
+        }
+        if (stage != null) {
+            if (staged == stage.length) {
+                if (metrics != null) {
+                    long start = metrics.startDeflate();
+                    flushStage();
+                    metrics.endDeflate(start);
+                } else {
+                    flushStage();
+                }
+            }
+            stage[staged++] = value;
+            return;
+        }
         single[0] = value;
-        write(single, 0, 1);
+        writeTimed(single, 0, 1);
     }
 
     void write(byte[] bytes, int offset, int length) {
-        deflater.setInput(bytes, offset, length);
-        while (!deflater.needsInput()) {
+        if (metrics != null) {
+            rawBytes += length;
+        }
+        writeTimed(bytes, offset, length);
+    }
+
+    private void writeTimed(byte[] bytes, int offset, int length) {
+        // Copying into the stage is not worth two calls to nanoTime, only writes that reach the compressor are timed
+        if (metrics != null && (stage == null || length >= stage.length || staged + length > stage.length)) {
+            long start = metrics.startDeflate();
+            writeData(bytes, offset, length);
+            metrics.endDeflate(start);
+        } else {
+            writeData(bytes, offset, length);
+        }
+    }
+
+    private void writeData(byte[] bytes, int offset, int length) {
+        if (parallel != null) {
+            parallel.write(bytes, offset, length);
+            return;
+        }
+        if (stored != null) {
+            writeStored(bytes, offset, length);
+            return;
+        }
+
+        if (length >= stage.length) {
+            flushStage();
+            deflate(bytes, offset, length);
+            return;
+        }
+        if (staged + length > stage.length) {
+            flushStage();
+        }
+        System.arraycopy(bytes, offset, stage, staged, length);
+        staged += length;
+    }
+
+    private void flushStage() {
+        if (staged > 0) {
+            deflate(stage, 0, staged);
+            staged = 0;
+        }
+    }
+
+    private void deflate(byte[] bytes, int offset, int length) {
+        compressor.setInput(bytes, offset, length);
+        while (!compressor.needsInput()) {
             deflate();
         }
     }
 
+    void writeCompressed(byte[] bytes, int offset, int length) {
+        writeCompressed(bytes, offset, length, null);
+    }
+
+    /**
+     * Writes a complete zlib stream, instead of compressing any rows. Nothing can be written before or after it,
+     * so the zlib header that was already written for the stored or parallel compression is dropped.
+     *
+     * @param stream    The zlib stream
+     * @param rawLength The number of bytes in the stream after inflating it
+     */
+    void writeStream(byte[] stream, int rawLength) {
+        if (metrics != null) {
+            rawBytes += rawLength;
+        }
+        length = headerSize;
+        crc = 0;
+        pending.reset();
+        pendingLength = 0;
+        complete = true;
+        writeCompressed(stream, 0, stream.length);
+    }
+
+    /**
+     * Writes compressed data, along with the CRCs of its consecutive blocks of {@link #CrcBlockSize} bytes,
+     * counted from the start of the array
+     */
+    void writeCompressed(byte[] bytes, int offset, int length, int[] blockCrcs) {
+        while (length > 0) {
+            int count = Math.min(length, buffer.length - this.length);
+            System.arraycopy(bytes, offset, buffer, this.length, count);
+            if (blockCrcs != null) {
+                updateCrc(bytes, offset, count, blockCrcs);
+            } else {
+                updateCrc(bytes, offset, count);
+            }
+            this.length += count;
+            offset += count;
+            length -= count;
+
+            if (this.length == buffer.length) {
+                writeIDAT();
+            }
+        }
+    }
+
+    /**
+     * Ends the data written so far on a byte boundary, and pushes it out to the underlying stream,
+     * so a decoder can start on it while the rest is still being compressed
+     */
+    void flush() {
+        long start = metrics != null ? metrics.startDeflate() : 0;
+        if (parallel != null) {
+            parallel.flush();
+        } else if (stored != null) {
+            if (blockStart >= 0) {
+                endBlock(false);
+            }
+        } else {
+            flushStage();
+            int space;
+            int count;
+            do {
+                space = buffer.length - length;
+                count = compressor.flush(buffer, length, space);
+                updateCrc(buffer, length, count);
+                length += count;
+                if (length == buffer.length) {
+                    writeIDAT();
+                }
+            } while (count == space);
+        }
+
+        if (length > headerSize) {
+            writeIDAT();
+        }
+        if (metrics != null) {
+            metrics.endDeflate(start);
+        }
+        chunkWriter.flush();
+    }
+
+    private void writeStored(byte[] bytes, int offset, int length) {
+        stored.update(bytes, offset, length);
+        while (length > 0) {
+            if (blockStart < 0) {
+                startBlock();
+            }
+            int blockEnd = Math.min(blockStart + StoredHeaderSize + MaxStoredSize, buffer.length);
+            int count = Math.min(length, blockEnd - this.length);
+            System.arraycopy(bytes, offset, buffer, this.length, count);
+            this.length += count;
+            offset += count;
+            length -= count;
+
+            if (this.length == blockEnd) {
+                endBlock(false);
+            }
+        }
+    }
+
+    private void startBlock() {
+        if (buffer.length - length <= StoredHeaderSize) {
+            writeIDAT();
+        }
+        blockStart = length;
+        length += StoredHeaderSize;
+    }
+
+    private void endBlock(boolean last) {
+        int size = length - blockStart - StoredHeaderSize;
+        buffer[blockStart] = (byte) (last ? 1 : 0);
+        buffer[blockStart + 1] = (byte) size;
+        buffer[blockStart + 2] = (byte) (size >> 8);
+        buffer[blockStart + 3] = (byte) ~size;
+        buffer[blockStart + 4] = (byte) (~size >> 8);
+        updateCrc(buffer, blockStart, length - blockStart);
+        blockStart = -1;
+
+        if (length == buffer.length) {
+            writeIDAT();
+        }
+    }
+
     private void deflate() {
-        int len = deflater.deflate(buffer, length, buffer.length - length);
+        int len = compressor.deflate(buffer, length, buffer.length - length);
         if (len > 0) {
+            updateCrc(buffer, length, len);
             length += len;
             if (length == buffer.length) {
                 writeIDAT();
@@ -37,19 +309,111 @@ final class IDATWriter implements AutoCloseable {
         }
     }
 
+    private void updateCrc(byte[] bytes, int offset, int length) {
+        pending.update(bytes, offset, length);
+        pendingLength += length;
+    }
+
+    private void updateCrc(byte[] bytes, int offset, int length, int[] blockCrcs) {
+        int end = offset + length;
+        int block = (offset + CrcBlockSize - 1) / CrcBlockSize;
+        int position = block * CrcBlockSize;
+        if (position + CrcBlockSize > end) {
+            updateCrc(bytes, offset, length);
+            return;
+        }
+
+        updateCrc(bytes, offset, position - offset);
+        crc = chunkCrc();
+        pending.reset();
+        pendingLength = 0;
+        for (; position + CrcBlockSize <= end; position += CrcBlockSize, block++) {
+            crc = Crc32Combine.apply(CrcBlockOperator, crc, blockCrcs[block]);
+        }
+        updateCrc(bytes, position, end - position);
+    }
+
+    private int chunkCrc() {
+        if (pendingLength == 0) {
+            return crc;
+        }
+        return Crc32Combine.combine(crc, (int) pending.getValue(), pendingLength);
+    }
+
     private void writeIDAT() {
-        chunkWriter.writeChunk(ChunkType.IDAT, buffer, length);
-        length = 0;
+        ChunkType type = ChunkType.IDAT;
+        if (sequence != null) {
+            type = ChunkType.fdAT;
+            int number = sequence.getAsInt();
+            buffer[0] = (byte) (number >> 24);
+            buffer[1] = (byte) (number >> 16);
+            buffer[2] = (byte) (number >> 8);
+            buffer[3] = (byte) number;
+        }
+
+        // The data was hashed as it came in, so only the chunk type and the sequence number are left
+        header.reset();
+        header.update(type.bytes());
+        header.update(buffer, 0, headerSize);
+        int chunkCrc = Crc32Combine.combine((int) header.getValue(), chunkCrc(), length - headerSize);
+
+        if (metrics != null) {
+            writeChunkMeasured(type, chunkCrc);
+        } else {
+            chunkWriter.writeChunk(type, buffer, length, chunkCrc);
+        }
+        chunksWritten++;
+        length = headerSize;
+        crc = 0;
+        pending.reset();
+        pendingLength = 0;
+    }
+
+    private void writeChunkMeasured(ChunkType type, int chunkCrc) {
+        long start = System.nanoTime();
+        chunkWriter.writeChunk(type, buffer, length, chunkCrc);
+        metrics.chunkWriteNanos += System.nanoTime() - start;
+
+        int compressedBytes = length - headerSize;
+        metrics.idatChunks++;
+        metrics.bytesIn += rawBytes;
+        metrics.bytesOut += compressedBytes;
+        listener.idatWritten(rawBytes, compressedBytes);
+        rawBytes = 0;
     }
 
     @Override
     public void close() {
-        deflater.finish();
-        while (!deflater.finished()) {
-            deflate();
+        long start = metrics != null ? metrics.startDeflate() : 0;
+        if (!complete) {
+            finishStream();
+        }
+
+        if (length > headerSize || chunksWritten == 0) {
+            writeIDAT();
         }
-        deflater.end();
+        if (metrics != null) {
+            metrics.endDeflate(start);
+        }
+    }
 
-        writeIDAT();
+    private void finishStream() {
+        if (parallel != null) {
+            parallel.finish();
+        } else if (stored != null) {
+            if (blockStart < 0) {
+                startBlock();
+            }
+            endBlock(true);
+            long adler = stored.getValue();
+            byte[] trailer = {(byte) (adler >> 24), (byte) (adler >> 16), (byte) (adler >> 8), (byte) adler};
+            writeCompressed(trailer, 0, trailer.length);
+        } else {
+            flushStage();
+            compressor.finish();
+            while (!compressor.finished()) {
+                deflate();
+            }
+        }
     }
 }
@@ -0,0 +1,114 @@
+package be.twofold.tinypng;
+
+import java.lang.invoke.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * A fast 128-bit hash over image data, fed in any number of pieces.
+ * <p>
+ * Four lanes of 64 bits each take one long of every 32 bytes, with the same round as xxHash64.
+ * At the end the lanes are folded twice, in different ways, into two 64-bit halves.
+ * This is not a cryptographic hash, but every hasher starts from a seed,
+ * so the values that collide are different for every seed.
+ */
+final class ImageHash {
+    private static final long Prime1 = 0x9E3779B185EBCA87L;
+    private static final long Prime2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long Prime3 = 0x165667B19E3779F9L;
+    private static final long Prime4 = 0x85EBCA77C2B2AE63L;
+    private static final long Prime5 = 0x27D4EB2F165667C5L;
+    private static final int StripeSize = 32;
+
+    private static final VarHandle Longs = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final byte[] pending = new byte[StripeSize];
+    private final long seed;
+    private long lane1;
+    private long lane2;
+    private long lane3;
+    private long lane4;
+    private int pendingLength;
+    private long length;
+
+    ImageHash(long seed) {
+        this.seed = seed;
+        this.lane1 = seed + Prime1 + Prime2;
+        this.lane2 = seed + Prime2;
+        this.lane3 = seed;
+        this.lane4 = seed - Prime1;
+    }
+
+    void update(byte[] data, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, data.length);
+        this.length += length;
+
+        if (pendingLength > 0) {
+            int count = Math.min(length, StripeSize - pendingLength);
+            System.arraycopy(data, offset, pending, pendingLength, count);
+            pendingLength += count;
+            offset += count;
+            length -= count;
+            if (pendingLength < StripeSize) {
+                return;
+            }
+            stripe(pending, 0);
+            pendingLength = 0;
+        }
+
+        int end = offset + length - StripeSize;
+        for (; offset <= end; offset += StripeSize) {
+            stripe(data, offset);
+        }
+
+        pendingLength = end + StripeSize - offset;
+        System.arraycopy(data, offset, pending, 0, pendingLength);
+    }
+
+    void updateInt(int value) {
+        update(new byte[]{(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value}, 0, 4);
+    }
+
+    /**
+     * Returns the hash of everything so far, as two longs
+     */
+    long[] digest() {
+        long low = Long.rotateLeft(lane1, 1) + Long.rotateLeft(lane2, 7) + Long.rotateLeft(lane3, 12) + Long.rotateLeft(lane4, 18);
+        low = merge(merge(merge(merge(low, lane1), lane2), lane3), lane4);
+        long high = Long.rotateLeft(lane4, 3) + Long.rotateLeft(lane3, 11) + Long.rotateLeft(lane2, 17) + Long.rotateLeft(lane1, 23);
+        high = merge(merge(merge(merge(high ^ seed, lane4), lane3), lane2), lane1);
+
+        low += length;
+        high += length * Prime5;
+        for (int i = 0; i < pendingLength; i++) {
+            long value = pending[i] & 0xff;
+            low = Long.rotateLeft(low ^ value * Prime5, 11) * Prime1;
+            high = Long.rotateLeft(high ^ value * Prime3, 13) * Prime2;
+        }
+        return new long[]{avalanche(low), avalanche(high ^ low)};
+    }
+
+    private void stripe(byte[] data, int offset) {
+        lane1 = round(lane1, (long) Longs.get(data, offset));
+        lane2 = round(lane2, (long) Longs.get(data, offset + 8));
+        lane3 = round(lane3, (long) Longs.get(data, offset + 16));
+        lane4 = round(lane4, (long) Longs.get(data, offset + 24));
+    }
+
+    private static long round(long lane, long value) {
+        return Long.rotateLeft(lane + value * Prime2, 31) * Prime1;
+    }
+
+    private static long merge(long hash, long lane) {
+        return (hash ^ round(0, lane)) * Prime1 + Prime4;
+    }
+
+    private static long avalanche(long hash) {
+        hash ^= hash >>> 33;
+        hash *= Prime2;
+        hash ^= hash >>> 29;
+        hash *= Prime3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+}
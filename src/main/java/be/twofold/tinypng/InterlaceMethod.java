@@ -0,0 +1,27 @@
+package be.twofold.tinypng;
+
+/**
+ * Specifies the order in which the pixels are written
+ */
+public enum InterlaceMethod {
+    /**
+     * The rows are written from top to bottom
+     */
+    NONE(0),
+
+    /**
+     * The pixels are written in seven passes, each one filling in more detail,
+     * so a decoder can show a preview of the whole image early
+     */
+    ADAM7(1);
+
+    private final byte value;
+
+    InterlaceMethod(int value) {
+        this.value = (byte) value;
+    }
+
+    byte value() {
+        return value;
+    }
+}
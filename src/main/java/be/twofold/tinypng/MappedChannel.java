@@ -0,0 +1,99 @@
+package be.twofold.tinypng;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * A channel that writes into memory-mapped regions of a file.
+ * <p>
+ * A single mapping holds at most 2 GB, so the file is mapped one region at a time, as the writes get there.
+ * Mapping grows the file to the end of the region, so on close the file is truncated back to what was
+ * actually written. Windows does not allow truncating a file that is still mapped, and Java cannot unmap
+ * a buffer on request, so closing fails there.
+ * <p>
+ * The file itself is not closed. It is left positioned after the written bytes.
+ */
+final class MappedChannel implements WritableByteChannel {
+    private static final int RegionSize = 1 << 30;
+
+    private final FileChannel file;
+    private final long start;
+    private final long maxSize;
+    private final int regionSize;
+    private MappedByteBuffer buffer;
+    private long mapped;
+    private boolean open = true;
+
+    MappedChannel(FileChannel file, long maxSize) throws IOException {
+        this(file, maxSize, RegionSize);
+    }
+
+    MappedChannel(FileChannel file, long maxSize, int regionSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be greater than 0");
+        }
+        this.file = file;
+        this.start = file.position();
+        this.maxSize = maxSize;
+        this.regionSize = regionSize;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        int length = src.remaining();
+        while (src.hasRemaining()) {
+            if (buffer == null || !buffer.hasRemaining()) {
+                mapNext();
+            }
+            int count = Math.min(src.remaining(), buffer.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + count);
+            buffer.put(part);
+            src.position(src.position() + count);
+        }
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open && file.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        long end = start + written();
+        if (buffer != null) {
+            buffer.force();
+        }
+        file.truncate(end);
+        file.position(end);
+    }
+
+    private void mapNext() throws IOException {
+        if (mapped == maxSize) {
+            throw new IOException("Mapped region is full, " + maxSize + " bytes is not enough");
+        }
+        if (buffer != null) {
+            buffer.force();
+        }
+        int size = (int) Math.min(regionSize, maxSize - mapped);
+        buffer = file.map(FileChannel.MapMode.READ_WRITE, start + mapped, size);
+        mapped += size;
+    }
+
+    private long written() {
+        return buffer == null ? 0 : mapped - buffer.remaining();
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -2,6 +2,11 @@ package be.twofold.tinypng;
 
 import java.util.*;
 
+/**
+ * Applies lossless reductions to an image, so there are fewer bytes to filter and compress.
+ * <p>
+ * Every reduction first checks whether it applies, and only allocates a new image when it does.
+ */
 final class Optimizer {
     private PngFormat format;
 
@@ -14,6 +19,10 @@ final class Optimizer {
     }
 
     byte[] optimize(byte[] data) {
+        if (data.length != format.bytesPerImage()) {
+            throw new IllegalArgumentException("image has wrong size, expected " + format.bytesPerImage() + " but was " + data.length);
+        }
+
         // Reduce 16 bits to 8 bits
         var reduced = reduceBitDepth16To8(data);
         if (reduced.isPresent()) {
@@ -27,6 +36,23 @@ final class Optimizer {
             data = reduced.get();
         }
 
+        reduced = reduceColorToGray(data);
+        if (reduced.isPresent()) {
+            format = format.withColorType(format.colorType() == ColorType.RGB_ALPHA ? ColorType.GRAY_ALPHA : ColorType.GRAY);
+            data = reduced.get();
+        }
+
+        // Sets the format itself, as it has to build the palette
+        reduced = reduceToPalette(data);
+        if (reduced.isPresent()) {
+            data = reduced.get();
+        }
+
+        reduced = reduceGrayBitDepth(data);
+        if (reduced.isPresent()) {
+            data = reduced.get();
+        }
+
         return data;
     }
 
@@ -45,8 +71,6 @@ final class Optimizer {
         for (int i = 0, o = 0; i < data.length; i += 2, o++) {
             reduced[o] = data[i];
         }
-
-        System.out.println("Reduced 16 bits to 8 bits");
         return Optional.of(reduced);
     }
 
@@ -59,18 +83,203 @@ final class Optimizer {
         int bytesPerPixel = format.bytesPerPixel();
         int bytesPerChannel = format.bytesPerChannel();
         int colorSize = bytesPerPixel - bytesPerChannel;
+        for (int i = colorSize; i < data.length; i += bytesPerPixel) {
+            for (int j = 0; j < bytesPerChannel; j++) {
+                if (data[i + j] != (byte) 0xff) {
+                    return Optional.empty();
+                }
+            }
+        }
+
         byte[] reduced = new byte[data.length / bytesPerPixel * colorSize];
-        for (int i = 0, o = 0; i < data.length; i += bytesPerPixel) {
+        for (int i = 0, o = 0; i < data.length; i += bytesPerPixel, o += colorSize) {
+            System.arraycopy(data, i, reduced, o, colorSize);
+        }
+        return Optional.of(reduced);
+    }
+
+    private Optional<byte[]> reduceColorToGray(byte[] data) {
+        if (format.colorType() != ColorType.RGB && format.colorType() != ColorType.RGB_ALPHA) {
+            return Optional.empty();
+        }
+
+        int bytesPerPixel = format.bytesPerPixel();
+        int bytesPerChannel = format.bytesPerChannel();
+        for (int i = 0; i < data.length; i += bytesPerPixel) {
             for (int j = 0; j < bytesPerChannel; j++) {
-                if (data[i + colorSize + j] != Byte.MAX_VALUE) {
+                byte r = data[i + j];
+                if (data[i + bytesPerChannel + j] != r || data[i + 2 * bytesPerChannel + j] != r) {
                     return Optional.empty();
                 }
             }
-            for (int j = 0; j < colorSize; j++) {
-                reduced[o++] = data[i + j];
+        }
+
+        // Keep the first channel, and the alpha channel if there is one
+        int grayBytesPerPixel = bytesPerPixel - 2 * bytesPerChannel;
+        byte[] reduced = new byte[data.length / bytesPerPixel * grayBytesPerPixel];
+        for (int i = 0, o = 0; i < data.length; i += bytesPerPixel, o += grayBytesPerPixel) {
+            System.arraycopy(data, i, reduced, o, bytesPerChannel);
+            System.arraycopy(data, i + 3 * bytesPerChannel, reduced, o + bytesPerChannel, grayBytesPerPixel - bytesPerChannel);
+        }
+        return Optional.of(reduced);
+    }
+
+    private Optional<byte[]> reduceToPalette(byte[] data) {
+        // Gray is already a single byte, and only benefits from a lower bit depth
+        if (format.bitDepth() != BitDepth.EIGHT
+            || format.colorType() == ColorType.GRAY
+            || format.colorType() == ColorType.INDEXED) {
+            return Optional.empty();
+        }
+
+        int bytesPerPixel = format.bytesPerPixel();
+        ColorTable table = new ColorTable();
+        for (int i = 0; i < data.length; i += bytesPerPixel) {
+            if (table.add(key(data, i, bytesPerPixel)) < 0) {
+                return Optional.empty();
             }
         }
+
+        PngPalette palette = table.toPalette(format.colorType());
+        BitDepth bitDepth = bitDepthFor(palette.size());
+
+        int bits = bitDepth.value();
+        int bytesPerRow = format.bytesPerRow();
+        int reducedBytesPerRow = (format.width() * bits + 7) / 8;
+        byte[] reduced = new byte[reducedBytesPerRow * format.height()];
+        for (int y = 0; y < format.height(); y++) {
+            for (int x = 0, i = y * bytesPerRow; x < format.width(); x++, i += bytesPerPixel) {
+                int index = table.indexOf(key(data, i, bytesPerPixel));
+                pack(reduced, y * reducedBytesPerRow, x, bits, index);
+            }
+        }
+
+        format = PngFormat.indexed(format.width(), format.height(), bitDepth, palette)
+            .withInterlaceMethod(format.interlaceMethod());
         return Optional.of(reduced);
     }
 
+    private Optional<byte[]> reduceGrayBitDepth(byte[] data) {
+        if (format.colorType() != ColorType.GRAY || format.bitDepth() != BitDepth.EIGHT) {
+            return Optional.empty();
+        }
+
+        // Values that fit in fewer bits are multiples of 0x11 (4 bits), 0x55 (2 bits) or 0xff (1 bit)
+        int bits = 1;
+        for (byte b : data) {
+            int value = Byte.toUnsignedInt(b);
+            if (value % 0x11 != 0) {
+                return Optional.empty();
+            }
+            if (value % 0x55 != 0) {
+                bits = 4;
+            } else if (value % 0xff != 0 && bits < 2) {
+                bits = 2;
+            }
+        }
+
+        int scale = 0xff / ((1 << bits) - 1);
+        int reducedBytesPerRow = (format.width() * bits + 7) / 8;
+        byte[] reduced = new byte[reducedBytesPerRow * format.height()];
+        for (int y = 0, i = 0; y < format.height(); y++) {
+            for (int x = 0; x < format.width(); x++, i++) {
+                pack(reduced, y * reducedBytesPerRow, x, bits, Byte.toUnsignedInt(data[i]) / scale);
+            }
+        }
+
+        format = format.withBitDepth(BitDepth.fromValue(bits).orElseThrow());
+        return Optional.of(reduced);
+    }
+
+    private static int key(byte[] data, int offset, int length) {
+        int key = 0;
+        for (int i = 0; i < length; i++) {
+            key = key << 8 | Byte.toUnsignedInt(data[offset + i]);
+        }
+        return key;
+    }
+
+    private static void pack(byte[] data, int rowOffset, int x, int bits, int value) {
+        int bit = x * bits;
+        data[rowOffset + bit / 8] |= (byte) (value << (8 - bits - bit % 8));
+    }
+
+    private static BitDepth bitDepthFor(int colors) {
+        if (colors <= 2) {
+            return BitDepth.ONE;
+        }
+        if (colors <= 4) {
+            return BitDepth.TWO;
+        }
+        if (colors <= 16) {
+            return BitDepth.FOUR;
+        }
+        return BitDepth.EIGHT;
+    }
+
+    /**
+     * An open addressing hash table that maps up to 256 colors to their index, without boxing
+     */
+    private static final class ColorTable {
+        private static final int Capacity = 1024;
+        private static final int MaxColors = 256;
+
+        private final int[] keys = new int[Capacity];
+        private final short[] indices = new short[Capacity];
+        private final int[] colors = new int[MaxColors];
+        private int size;
+
+        /**
+         * Adds the color if it's not present yet
+         *
+         * @return The index of the color, or -1 if there are too many colors
+         */
+        int add(int key) {
+            int slot = slot(key);
+            if (indices[slot] != 0) {
+                return indices[slot] - 1;
+            }
+            if (size == MaxColors) {
+                return -1;
+            }
+            keys[slot] = key;
+            indices[slot] = (short) (size + 1);
+            colors[size] = key;
+            return size++;
+        }
+
+        int indexOf(int key) {
+            return indices[slot(key)] - 1;
+        }
+
+        PngPalette toPalette(ColorType colorType) {
+            List<PngPalette.Color> result = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                int key = colors[i];
+                switch (colorType) {
+                    case GRAY_ALPHA:
+                        int gray = key >>> 8;
+                        result.add(new PngPalette.Color(gray, gray, gray, key & 0xff));
+                        break;
+                    case RGB:
+                        result.add(new PngPalette.Color(key >>> 16, key >>> 8 & 0xff, key & 0xff));
+                        break;
+                    case RGB_ALPHA:
+                        result.add(new PngPalette.Color(key >>> 24, key >>> 16 & 0xff, key >>> 8 & 0xff, key & 0xff));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unsupported color type: " + colorType);
+                }
+            }
+            return new PngPalette(result);
+        }
+
+        private int slot(int key) {
+            int slot = (key * 0x9e3779b9) >>> 22;
+            while (indices[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & (Capacity - 1);
+            }
+            return slot;
+        }
+    }
 }
@@ -0,0 +1,216 @@
+package be.twofold.tinypng;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Compresses a zlib stream on multiple threads, in the same way pigz does.
+ * <p>
+ * The input is cut in segments, which are compressed independently as raw deflate streams.
+ * Every segment uses the tail of the previous segment as a preset dictionary, and is terminated
+ * with a sync flush, so the compressed segments can simply be concatenated.
+ */
+final class ParallelDeflater {
+    private static final int SegmentSize = 128 * 1024;
+    private static final int DictionarySize = 32 * 1024;
+    private static final int Base = 65521;
+
+    private final Deque<CompletableFuture<Segment>> pending = new ArrayDeque<>();
+    private final IDATWriter output;
+    private final Executor executor;
+    private final int maxPending;
+    private final int level;
+    private final int strategy;
+
+    private byte[] segment = new byte[SegmentSize];
+    private int segmentLength;
+    private byte[] previous;
+    private int previousLength;
+    private long adler = 1;
+
+    ParallelDeflater(IDATWriter output, PngOptions options) {
+        this.output = Objects.requireNonNull(output);
+        this.executor = options.executor();
+        this.maxPending = options.threads() * 2;
+        this.level = options.compressionLevel();
+        this.strategy = options.compressionStrategy().value();
+
+        writeHeader();
+    }
+
+    void write(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            int count = Math.min(length, segment.length - segmentLength);
+            System.arraycopy(bytes, offset, segment, segmentLength, count);
+            segmentLength += count;
+            offset += count;
+            length -= count;
+
+            if (segmentLength == segment.length) {
+                submit(false);
+            }
+        }
+    }
+
+    /**
+     * Compresses everything written so far, every segment already ends with a sync flush
+     */
+    void flush() {
+        if (segmentLength > 0) {
+            submit(false);
+        }
+        while (!pending.isEmpty()) {
+            drain();
+        }
+    }
+
+    void finish() {
+        submit(true);
+        while (!pending.isEmpty()) {
+            drain();
+        }
+
+        byte[] trailer = {
+            (byte) (adler >> 24),
+            (byte) (adler >> 16),
+            (byte) (adler >> 8),
+            (byte) adler
+        };
+        output.writeCompressed(trailer, 0, trailer.length);
+    }
+
+    private void writeHeader() {
+        int cmf = 0x78;
+        int flg = flevel(level) << 6;
+        flg += 31 - (cmf * 256 + flg) % 31;
+        byte[] header = {(byte) cmf, (byte) flg};
+        output.writeCompressed(header, 0, header.length);
+    }
+
+    private void submit(boolean last) {
+        if (pending.size() >= maxPending) {
+            drain();
+        }
+
+        byte[] input = segment;
+        int inputLength = segmentLength;
+        byte[] dictionary = previous;
+        int dictionaryLength = previousLength;
+        pending.add(CompletableFuture.supplyAsync(
+            () -> compress(input, inputLength, dictionary, dictionaryLength, last), executor));
+
+        previous = segment;
+        previousLength = segmentLength;
+        segment = new byte[SegmentSize];
+        segmentLength = 0;
+    }
+
+    private void drain() {
+        Segment result;
+        try {
+            result = pending.removeFirst().join();
+        } catch (CompletionException e) {
+            throw new PngException("Failed to compress segment", e.getCause());
+        }
+        adler = combine(adler, result.adler, result.inputLength);
+        output.writeCompressed(result.data, 0, result.length, result.blockCrcs);
+    }
+
+    private Segment compress(byte[] input, int inputLength, byte[] dictionary, int dictionaryLength, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setStrategy(strategy);
+            if (dictionary != null) {
+                int length = Math.min(dictionaryLength, DictionarySize);
+                deflater.setDictionary(dictionary, dictionaryLength - length, length);
+            }
+            deflater.setInput(input, 0, inputLength);
+            if (last) {
+                deflater.finish();
+            }
+
+            byte[] data = new byte[inputLength + (inputLength >> 3) + 64];
+            int length = 0;
+            while (true) {
+                if (length == data.length) {
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+                int space = data.length - length;
+                int count = deflater.deflate(data, length, space, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                length += count;
+                if (last ? deflater.finished() : count < space) {
+                    break;
+                }
+            }
+
+            Adler32 adler32 = new Adler32();
+            adler32.update(input, 0, inputLength);
+            return new Segment(data, length, blockCrcs(data, length), adler32.getValue(), inputLength);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Computes the CRCs the IDAT writer needs, while the compressed data is still in this thread's cache
+     */
+    private static int[] blockCrcs(byte[] data, int length) {
+        int blockSize = IDATWriter.CrcBlockSize;
+        int[] result = new int[length / blockSize];
+        CRC32 crc32 = new CRC32();
+        for (int i = 0; i < result.length; i++) {
+            crc32.reset();
+            crc32.update(data, i * blockSize, blockSize);
+            result[i] = (int) crc32.getValue();
+        }
+        return result;
+    }
+
+    static long combine(long adler1, long adler2, long length2) {
+        long remainder = length2 % Base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = remainder * sum1 % Base;
+        sum1 += (adler2 & 0xffff) + Base - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + Base - remainder;
+        if (sum1 >= Base) {
+            sum1 -= Base;
+        }
+        if (sum1 >= Base) {
+            sum1 -= Base;
+        }
+        if (sum2 >= Base << 1) {
+            sum2 -= Base << 1;
+        }
+        if (sum2 >= Base) {
+            sum2 -= Base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    private static int flevel(int level) {
+        if (level < 2) {
+            return 0;
+        }
+        if (level < 6) {
+            return 1;
+        }
+        return level == 6 ? 2 : 3;
+    }
+
+    private static final class Segment {
+        private final byte[] data;
+        private final int length;
+        private final int[] blockCrcs;
+        private final long adler;
+        private final int inputLength;
+
+        private Segment(byte[] data, int length, int[] blockCrcs, long adler, int inputLength) {
+            this.data = data;
+            this.length = length;
+            this.blockCrcs = blockCrcs;
+            this.adler = adler;
+            this.inputLength = inputLength;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package be.twofold.tinypng;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Filters bands of rows on multiple threads.
+ * <p>
+ * Filtering a row only depends on the unfiltered previous row, so a band can be cut in chunks
+ * that are filtered independently, each with its own {@link PngFilter}. The filtered chunks are
+ * passed on in order, so the output is identical to filtering on a single thread.
+ */
+final class ParallelFilter {
+    private static final int ChunkSize = 128 * 1024;
+
+    private final Deque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+    private final PngFormat format;
+    private final PngOptions options;
+    private final PngFilter filter;
+    private final IDATWriter writer;
+    private final PngMetrics metrics;
+    private final Executor executor;
+    private final int maxPending;
+    private final int rowsPerChunk;
+
+    ParallelFilter(PngFormat format, PngOptions options, PngFilter filter, IDATWriter writer, PngMetrics metrics) {
+        this.format = Objects.requireNonNull(format);
+        this.options = Objects.requireNonNull(options);
+        this.filter = Objects.requireNonNull(filter);
+        this.writer = Objects.requireNonNull(writer);
+        this.metrics = metrics;
+        this.executor = options.executor();
+        this.maxPending = options.threads() * 2;
+        this.rowsPerChunk = Math.max(1, ChunkSize / (format.bytesPerRow() + 1));
+    }
+
+    int rowsPerChunk() {
+        return rowsPerChunk;
+    }
+
+    void filter(RowSource source, int rowCount) {
+        for (int row = 0; row < rowCount; row += rowsPerChunk) {
+            if (pending.size() >= maxPending) {
+                drain();
+            }
+
+            int firstRow = row;
+            int chunkRows = Math.min(rowsPerChunk, rowCount - row);
+            PngFilter chunkFilter = new PngFilter(format, options);
+            if (row == 0) {
+                chunkFilter.seed(filter);
+            } else {
+                chunkFilter.seed(source, row - 1);
+            }
+            pending.add(CompletableFuture.supplyAsync(
+                () -> filterChunk(chunkFilter, source, firstRow, chunkRows), executor));
+        }
+
+        while (!pending.isEmpty()) {
+            drain();
+        }
+        filter.seed(source, rowCount - 1);
+    }
+
+    private byte[] filterChunk(PngFilter chunkFilter, RowSource source, int firstRow, int rowCount) {
+        int bytesPerPixel = format.bytesPerPixel();
+        int bytesPerRow = format.bytesPerRow();
+
+        byte[] result = new byte[rowCount * (bytesPerRow + 1)];
+        try {
+            for (int row = 0, o = 0; row < rowCount; row++, o += bytesPerRow + 1) {
+                int filterMethod = chunkFilter.filter(source, firstRow + row);
+                result[o] = (byte) filterMethod;
+                System.arraycopy(chunkFilter.bestRow(), bytesPerPixel, result, o + 1, bytesPerRow);
+            }
+        } finally {
+            chunkFilter.close();
+        }
+        return result;
+    }
+
+    private void drain() {
+        byte[] result;
+        try {
+            result = pending.removeFirst().join();
+        } catch (CompletionException e) {
+            throw new PngException("Failed to filter rows", e.getCause());
+        }
+        if (metrics != null) {
+            for (int o = 0; o < result.length; o += format.bytesPerRow() + 1) {
+                metrics.filterTypes[result[o]]++;
+            }
+        }
+        writer.write(result, 0, result.length);
+    }
+}
@@ -0,0 +1,310 @@
+package be.twofold.tinypng;
+
+import java.nio.*;
+import java.nio.channels.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Encodes a single image without blocking the threads that produce the rows or consume the output.
+ * <p>
+ * Rows come in as {@code byte[]} items, each holding one or more whole rows, and the encoded file
+ * goes out as {@link ByteBuffer}s. All the filtering and compression runs on the executor from the options,
+ * one item at a time. The next item is only requested once the subscriber has consumed everything that
+ * was encoded so far and still has demand, so a slow subscriber holds back the producer instead of
+ * filling up memory.
+ * <p>
+ * Each item is filtered and compressed on a single thread, whatever {@link PngOptions#threads()} says.
+ * Parallel work on the same executor would have to be waited for, which blocks a thread of the executor,
+ * and can deadlock when the executor is bounded.
+ * <p>
+ * Only a single subscriber is supported. When the image is done, or when encoding fails,
+ * the {@link #result()} completes.
+ */
+public final class PngAsyncEncoder implements Flow.Processor<byte[], ByteBuffer> {
+    private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private final AtomicBoolean inputRequested = new AtomicBoolean();
+    private final CompletableFuture<Stats> result = new CompletableFuture<>();
+    private final PngFormat format;
+    private final PngOptions options;
+    private final Executor executor;
+
+    private volatile Flow.Subscription upstream;
+    private volatile Flow.Subscriber<? super ByteBuffer> downstream;
+    private volatile Throwable error;
+    private volatile boolean finished;
+    private volatile boolean cancelled;
+    private boolean terminated;
+    private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+    // Only touched by the tasks on the executor, which run one after the other
+    private PngEncoder encoder;
+    private PngWriter writer;
+    private long start;
+    private long rows;
+    private long inputBytes;
+    private long outputBytes;
+
+    public PngAsyncEncoder(PngFormat format, PngOptions options) {
+        this.format = Objects.requireNonNull(format, "format must not be null");
+        this.options = Objects.requireNonNull(options, "options must not be null");
+        this.executor = options.executor();
+    }
+
+    /**
+     * Returns a future that completes with the stats after the last buffer has been published,
+     * or exceptionally if encoding fails or the subscriber cancels
+     */
+    public CompletableFuture<Stats> result() {
+        return result;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber must not be null");
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Only a single subscriber is supported"));
+            return;
+        }
+
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    fail(new IllegalArgumentException("request must be greater than 0, but was " + n));
+                    return;
+                }
+                demand.getAndAccumulate(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                fail(new CancellationException("Cancelled by the subscriber"));
+            }
+        });
+        downstream = subscriber;
+        drain();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        Objects.requireNonNull(subscription, "subscription must not be null");
+        if (upstream != null) {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        drain();
+    }
+
+    @Override
+    public void onNext(byte[] item) {
+        Objects.requireNonNull(item, "item must not be null");
+        schedule(() -> {
+            int bytesPerRow = format.bytesPerRow();
+            if (item.length % bytesPerRow != 0) {
+                throw new IllegalArgumentException("Item of " + item.length + " bytes does not hold whole rows of " + bytesPerRow + " bytes");
+            }
+            int rowCount = item.length / bytesPerRow;
+            writer().writeRows(item, 0, rowCount);
+            rows += rowCount;
+            inputBytes += item.length;
+            inputRequested.set(false);
+        });
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        Objects.requireNonNull(throwable, "throwable must not be null");
+        fail(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        schedule(() -> {
+            writer().finish();
+            encoder.close();
+            finished = true;
+        });
+    }
+
+    private synchronized void schedule(Runnable task) {
+        tail = tail.thenRunAsync(() -> {
+            if (error != null) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                fail(t);
+                return;
+            }
+            drain();
+        }, executor);
+    }
+
+    private PngWriter writer() {
+        if (writer == null) {
+            start = System.nanoTime();
+            encoder = new PngEncoder(new Output(), format, options.withThreads(1));
+            writer = encoder.writeHeader();
+        }
+        return writer;
+    }
+
+    private void fail(Throwable throwable) {
+        if (!result.completeExceptionally(throwable)) {
+            return;
+        }
+        error = throwable;
+        release();
+        Flow.Subscription subscription = upstream;
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        drain();
+    }
+
+    /**
+     * Releases the compressor of an unfinished image, after the task that is running now.
+     * Any task that comes after it sees the error and does nothing.
+     */
+    private synchronized void release() {
+        tail = tail.thenRunAsync(() -> {
+            if (writer != null) {
+                writer.abort();
+            }
+        }, executor);
+    }
+
+    /**
+     * Passes the encoded buffers on while there is demand, and asks for more input once they are all gone.
+     * Only one thread drains at a time, a call that comes in meanwhile makes that thread go round again.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            Flow.Subscriber<? super ByteBuffer> subscriber = downstream;
+            if (subscriber != null && !terminated) {
+                if (error != null) {
+                    queue.clear();
+                    terminated = true;
+                    if (!cancelled) {
+                        subscriber.onError(error);
+                    }
+                } else {
+                    while (demand.get() > 0 && !queue.isEmpty()) {
+                        subscriber.onNext(queue.poll());
+                        demand.decrementAndGet();
+                    }
+                    if (queue.isEmpty() && finished) {
+                        terminated = true;
+                        subscriber.onComplete();
+                        result.complete(new Stats(rows, inputBytes, outputBytes, Duration.ofNanos(System.nanoTime() - start)));
+                    } else if (queue.isEmpty() && demand.get() > 0) {
+                        requestInput();
+                    }
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void requestInput() {
+        Flow.Subscription subscription = upstream;
+        if (subscription != null && !finished && inputRequested.compareAndSet(false, true)) {
+            subscription.request(1);
+        }
+    }
+
+    /**
+     * Copies everything that is written into a buffer of its own, and hands it to the subscriber
+     */
+    private final class Output implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            copy.put(src).flip();
+            outputBytes += length;
+            queue.add(copy);
+            drain();
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Some numbers about an encoded image
+     */
+    public static final class Stats {
+        private final long rows;
+        private final long inputBytes;
+        private final long outputBytes;
+        private final Duration duration;
+
+        private Stats(long rows, long inputBytes, long outputBytes, Duration duration) {
+            this.rows = rows;
+            this.inputBytes = inputBytes;
+            this.outputBytes = outputBytes;
+            this.duration = duration;
+        }
+
+        public long rows() {
+            return rows;
+        }
+
+        public long inputBytes() {
+            return inputBytes;
+        }
+
+        public long outputBytes() {
+            return outputBytes;
+        }
+
+        /**
+         * Returns the time from the first row until the last buffer was published
+         */
+        public Duration duration() {
+            return duration;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats(" +
+                "rows=" + rows + ", " +
+                "inputBytes=" + inputBytes + ", " +
+                "outputBytes=" + outputBytes + ", " +
+                "duration=" + duration +
+                ")";
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package be.twofold.tinypng;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Encodes many images concurrently, which suits large numbers of small images.
+ * <p>
+ * Every image is encoded on a single thread of the executor from the options. The deflater,
+ * buffers and filter rows are pooled and reused across images, so encoding an image
+ * allocates next to nothing once the pool is warmed up.
+ * <p>
+ * Closing the batch encoder releases the pooled state, and should only be done when all jobs are done.
+ */
+public final class PngBatchEncoder implements AutoCloseable {
+    private final Deque<Workspace> workspaces = new ConcurrentLinkedDeque<>();
+    private final PngOptions options;
+    private final Executor executor;
+
+    public PngBatchEncoder(PngOptions options) {
+        // Parallelism comes from encoding multiple images, not from splitting a single one
+        this.options = Objects.requireNonNull(options, "options must not be null").withThreads(1);
+        this.executor = options.executor();
+    }
+
+    /**
+     * Submits a single image to be encoded. The output is closed when the image is written.
+     *
+     * @param format The format of the image
+     * @param image  The image to encode
+     * @param output The output to write the image to
+     * @return A future that completes when the image is written
+     */
+    public CompletableFuture<Void> submit(PngFormat format, byte[] image, OutputStream output) {
+        Objects.requireNonNull(format, "format must not be null");
+        Objects.requireNonNull(image, "image must not be null");
+        Objects.requireNonNull(output, "output must not be null");
+        return CompletableFuture.runAsync(() -> encode(format, image, output), executor);
+    }
+
+    /**
+     * Submits a number of images to be encoded
+     *
+     * @param jobs The images to encode
+     * @return A future that completes when all images are written
+     */
+    public CompletableFuture<Void> submitAll(Collection<Job> jobs) {
+        CompletableFuture<?>[] futures = jobs.stream()
+            .map(job -> submit(job.format, job.image, job.output))
+            .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(futures);
+    }
+
+    private void encode(PngFormat format, byte[] image, OutputStream output) {
+        Workspace workspace = workspaces.pollFirst();
+        if (workspace == null) {
+            workspace = new Workspace(options);
+        }
+
+        try (PngEncoder encoder = new PngEncoder(output, format, options, workspace)) {
+            encoder.writeImage(image);
+        } finally {
+            workspaces.addFirst(workspace);
+        }
+    }
+
+    @Override
+    public void close() {
+        Workspace workspace;
+        while ((workspace = workspaces.pollFirst()) != null) {
+            workspace.close();
+        }
+    }
+
+    /**
+     * A single image to encode
+     */
+    public static final class Job {
+        private final PngFormat format;
+        private final byte[] image;
+        private final OutputStream output;
+
+        public Job(PngFormat format, byte[] image, OutputStream output) {
+            this.format = Objects.requireNonNull(format, "format must not be null");
+            this.image = Objects.requireNonNull(image, "image must not be null");
+            this.output = Objects.requireNonNull(output, "output must not be null");
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package be.twofold.tinypng;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Remembers encoded images, so the same pixels in the same format only get encoded once.
+ * <p>
+ * Every image is looked up by a 128-bit hash over its format and pixels. On a hit, the PNG that was
+ * written before is copied to the output as is, and nothing is filtered or compressed. The cache holds
+ * at most {@code maxBytes} of encoded PNGs, and drops the least recently used ones to stay under that.
+ * An image whose PNG is larger than the whole cache is encoded every time.
+ * <p>
+ * The hash is seeded randomly for every cache, so a colliding image cannot be crafted up front.
+ * A cache can be used from multiple threads. Two threads that miss on the same image at the same time
+ * both encode it.
+ */
+public final class PngCache {
+    private final Map<Key, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final long seed = ThreadLocalRandom.current().nextLong();
+    private final long maxBytes;
+    private final PngOptions options;
+    private long bytes;
+
+    /**
+     * @param maxBytes The maximum total size of the cached PNGs
+     * @param options  The options to encode with on a miss
+     */
+    public PngCache(long maxBytes, PngOptions options) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be greater than 0");
+        }
+        this.maxBytes = maxBytes;
+        this.options = Objects.requireNonNull(options, "options must not be null");
+    }
+
+    /**
+     * Writes a complete image, from the cache if the same image was written before.
+     * The output is closed when the image is written.
+     *
+     * @param format The format of the image
+     * @param image  The image to write
+     * @param output The output to write the image to
+     */
+    public void write(PngFormat format, byte[] image, OutputStream output) {
+        Objects.requireNonNull(output, "output must not be null");
+        byte[] png = lookup(format, image);
+        try (output) {
+            output.write(png);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the encoded image, from the cache if the same image was encoded before.
+     * The returned array is a copy, so the caller is free to modify it.
+     *
+     * @param format The format of the image
+     * @param image  The image to encode
+     * @return The complete PNG file
+     */
+    public byte[] encode(PngFormat format, byte[] image) {
+        return lookup(format, image).clone();
+    }
+
+    /**
+     * Returns the array that is stored in the cache, encoding the image on a miss
+     */
+    private byte[] lookup(PngFormat format, byte[] image) {
+        Objects.requireNonNull(format, "format must not be null");
+        Objects.requireNonNull(image, "image must not be null");
+        if (image.length != format.bytesPerImage()) {
+            throw new IllegalArgumentException("image has wrong size, expected " + format.bytesPerImage() + " but was " + image.length);
+        }
+
+        Key key = key(format, image);
+        byte[] png = get(key);
+        if (png != null) {
+            hits.incrementAndGet();
+            return png;
+        }
+
+        misses.incrementAndGet();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PngEncoder encoder = new PngEncoder(out, format, options)) {
+            encoder.writeImage(image);
+        }
+        png = out.toByteArray();
+        put(key, png);
+        return png;
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the total size of the PNGs in the cache
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private synchronized byte[] get(Key key) {
+        return entries.get(key);
+    }
+
+    private synchronized void put(Key key, byte[] png) {
+        if (png.length > maxBytes) {
+            return;
+        }
+        byte[] previous = entries.put(key, png);
+        if (previous != null) {
+            bytes -= previous.length;
+        }
+        bytes += png.length;
+
+        Iterator<byte[]> iterator = entries.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= iterator.next().length;
+            iterator.remove();
+        }
+    }
+
+    private Key key(PngFormat format, byte[] image) {
+        ImageHash hash = new ImageHash(seed);
+        hash.updateInt(format.width());
+        hash.updateInt(format.height());
+        hash.updateInt(format.bitDepth().value());
+        hash.updateInt(format.colorType().value());
+        hash.updateInt(format.interlaceMethod().value());
+        if (format.palette().isPresent()) {
+            PngPalette palette = format.palette().get();
+            hash.updateInt(palette.size());
+            for (int i = 0; i < palette.size(); i++) {
+                PngPalette.Color color = palette.get(i);
+                hash.update(new byte[]{color.red(), color.green(), color.blue(), color.alpha()}, 0, 4);
+            }
+        }
+        hash.update(image, 0, image.length);
+
+        long[] digest = hash.digest();
+        return new Key(digest[0], digest[1]);
+    }
+
+    private static final class Key {
+        private final long low;
+        private final long high;
+
+        private Key(long low, long high) {
+            this.low = low;
+            this.high = high;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return low == other.low && high == other.high;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(low);
+        }
+    }
+}
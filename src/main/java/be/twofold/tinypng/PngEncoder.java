@@ -2,6 +2,7 @@ package be.twofold.tinypng;
 
 import java.io.*;
 import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 
 /**
@@ -12,21 +13,149 @@ import java.util.*;
  */
 public final class PngEncoder implements AutoCloseable {
     private final PngFormat format;
+    private final PngOptions options;
     private final ChunkWriter writer;
+    private final Workspace workspace;
+    private ApngWriter animation;
+    private boolean headerWritten;
 
     public PngEncoder(OutputStream output, PngFormat format) {
+        this(output, format, PngOptions.defaults());
+    }
+
+    public PngEncoder(OutputStream output, PngFormat format, PngOptions options) {
+        this(output, format, options, null);
+    }
+
+    /**
+     * Creates an encoder that writes directly to a channel, bypassing any stream buffering
+     */
+    public PngEncoder(WritableByteChannel output, PngFormat format, PngOptions options) {
+        this(new ChunkWriter(output), format, options, null);
+    }
+
+    /**
+     * Creates an encoder that uses a shared workspace, which is not closed by the encoder
+     */
+    PngEncoder(OutputStream output, PngFormat format, PngOptions options, Workspace workspace) {
+        this(new ChunkWriter(output), format, options, workspace);
+    }
+
+    private PngEncoder(ChunkWriter writer, PngFormat format, PngOptions options, Workspace workspace) {
         this.format = Objects.requireNonNull(format, "format must not be null");
-        this.writer = new ChunkWriter(output);
+        this.options = Objects.requireNonNull(options, "options must not be null");
+        this.writer = writer;
+        this.workspace = workspace;
+    }
+
+    /**
+     * Creates an encoder that writes into a memory-mapped region of a file.
+     * <p>
+     * The file is mapped from its current position up to {@code maxSize} bytes, in regions of at most 1 GB,
+     * and truncated to the bytes actually written when the encoder is closed. Writing more than {@code maxSize}
+     * bytes fails with a {@link PngException}.
+     * <p>
+     * Closing the encoder does not close the file, which is left positioned after the PNG.
+     * This does not work on Windows, which does not allow truncating a file that is still mapped.
+     * Use {@link #PngEncoder(WritableByteChannel, PngFormat, PngOptions)} there instead.
+     *
+     * @param file    The file to write to, opened for reading and writing
+     * @param maxSize The upper bound on the encoded size
+     */
+    public static PngEncoder mapped(FileChannel file, long maxSize, PngFormat format, PngOptions options) {
+        try {
+            return new PngEncoder(new MappedChannel(file, maxSize), format, options);
+        } catch (IOException e) {
+            throw new PngException("Failed to map file", e);
+        }
     }
 
+    /**
+     * Writes the header, after which the image data can be written using the returned writer
+     *
+     * @return The writer for the image data
+     */
     public PngWriter writeHeader() {
-        writeIHDR();
-        writePLTE();
+        return writeHeader(format);
+    }
+
+    /**
+     * Writes a complete image, header included.
+     * <p>
+     * When {@link PngOptions#optimize()} is enabled, the image is reduced first,
+     * so the format that ends up in the file can differ from the one that was passed in.
+     *
+     * @param image The image to write
+     */
+    public void writeImage(byte[] image) {
+        if (options.optimize()) {
+            boolean measure = options.listener().isPresent();
+            long start = measure ? System.nanoTime() : 0;
+            Optimizer optimizer = new Optimizer(format);
+            byte[] optimized = optimizer.optimize(image);
+            long nanos = measure ? System.nanoTime() - start : 0;
+
+            PngWriter writer = writeHeader(optimizer.format());
+            writer.optimized(nanos);
+            writer.writeImage(optimized);
+        } else {
+            writeHeader(format).writeImage(image);
+        }
+    }
 
-        return new PngWriter(format, writer);
+    /**
+     * Writes the header of an animated PNG, after which the frames can be written using the returned writer.
+     * <p>
+     * The first frame is also the image shown by decoders that do not support animation.
+     *
+     * @param frameCount The number of frames that will be written
+     * @param plays      The number of times the animation plays, or 0 to loop forever
+     * @return The writer for the frames
+     */
+    public ApngWriter writeAnimationHeader(int frameCount, int plays) {
+        if (frameCount <= 0) {
+            throw new IllegalArgumentException("frameCount must be greater than 0");
+        }
+        if (plays < 0) {
+            throw new IllegalArgumentException("plays must not be negative");
+        }
+        if (format.interlaceMethod() != InterlaceMethod.NONE) {
+            throw new PngException("Animations cannot be interlaced");
+        }
+        checkHeader();
+
+        writeIHDR(format);
+        writer.writeChunk(ChunkType.acTL, ByteBuffer.allocate(8)
+            .putInt(frameCount)
+            .putInt(plays)
+            .array());
+        writePLTE(format);
+
+        animation = workspace != null
+            ? new ApngWriter(format, writer, workspace, false, frameCount)
+            : new ApngWriter(format, writer, new Workspace(options), true, frameCount);
+        return animation;
+    }
+
+    private PngWriter writeHeader(PngFormat format) {
+        checkHeader();
+
+        writeIHDR(format);
+        writePLTE(format);
+
+        return workspace != null
+            ? new PngWriter(format, writer, workspace, false)
+            : new PngWriter(format, writer, new Workspace(options), true);
     }
 
-    private void writeIHDR() {
+    private void checkHeader() {
+        if (headerWritten) {
+            throw new IllegalStateException("Header has already been written");
+        }
+        headerWritten = true;
+    }
+
+    private void writeIHDR(PngFormat format) {
         byte[] chunk = ByteBuffer.allocate(13)
             .putInt(format.width())
             .putInt(format.height())
@@ -34,13 +163,13 @@ public final class PngEncoder implements AutoCloseable {
             .put(format.colorType().value())
             .put((byte) 0)
             .put((byte) 0)
-            .put((byte) 0)
+            .put(format.interlaceMethod().value())
             .array();
         writer.writeChunk(ChunkType.IHDR, chunk);
     }
 
     @SuppressWarnings("PointlessArithmeticExpression")
-    private void writePLTE() {
+    private void writePLTE(PngFormat format) {
         if (format.palette().isEmpty()) {
             return;
         }
@@ -54,19 +183,50 @@ public final class PngEncoder implements AutoCloseable {
             data[i * 3 + 2] = color.blue();
         }
         writer.writeChunk(ChunkType.PLTE, data);
+
+        // Only write the alpha values up to the last translucent color
+        int count = 0;
+        for (int i = 0; i < palette.size(); i++) {
+            if (palette.get(i).alpha() != (byte) 0xff) {
+                count = i + 1;
+            }
+        }
+        if (count > 0) {
+            byte[] alphas = new byte[count];
+            for (int i = 0; i < count; i++) {
+                alphas[i] = palette.get(i).alpha();
+            }
+            writer.writeChunk(ChunkType.tRNS, alphas);
+        }
     }
 
     private void writeIEND() {
         writer.writeChunk(ChunkType.IEND, new byte[0]);
     }
 
+    /**
+     * Ends the file and closes the output.
+     * <p>
+     * If an animation was started but not all of its frames were written, the file is left without an end,
+     * because the frame count that was promised cannot be met.
+     *
+     * @throws IllegalStateException If not all frames of an animation were written
+     */
     @Override
     public void close() {
+        boolean incomplete = animation != null && animation.framesWritten() != animation.frameCount();
         try {
-            writeIEND();
+            if (incomplete) {
+                animation.abort();
+            } else {
+                writeIEND();
+            }
             writer.close();
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
+        if (incomplete) {
+            throw new IllegalStateException("Expected " + animation.frameCount() + " frames, but only " + animation.framesWritten() + " were written");
+        }
     }
 }
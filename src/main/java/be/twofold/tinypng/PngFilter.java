@@ -1,85 +1,261 @@
 package be.twofold.tinypng;
 
 import java.util.*;
+import java.util.zip.*;
 
+/**
+ * Filters rows of an image.
+ * <p>
+ * The adaptive strategy scores every filter without writing its output, and stops scoring a filter
+ * as soon as it can no longer beat the best one so far. Only the winning filter is written out.
+ * The kernels themselves are in {@link FilterKernels}. On Java 17 and up, with the
+ * {@code jdk.incubator.vector} module added, they use the Vector API. Their output is the same either way.
+ * <p>
+ * A row that is the same as the previous one is written as an Up filtered row of zeros straight away,
+ * unless the strategy asks for a fixed filter. No filter can beat that, so none of them are scored.
+ */
 final class PngFilter {
+    private static final int None = 0;
+    private static final int Sub = 1;
+    private static final int Up = 2;
+    private static final int Average = 3;
+    private static final int Paeth = 4;
+
+    private static final FilterKernels DefaultKernels = FilterKernels.defaults();
 
     private final PngFormat format;
-    private final byte[][] filtered;
+    private final FilterStrategy strategy;
+    private final FilterKernels kernels;
+    private final int bpp;
+    private final int end;
+    private final byte[] filtered;
+    private final byte[] zeros;
     private byte[] previous;
     private byte[] current;
+    private byte[] best;
+
+    // Only used by the entropy and brute force strategies
+    private byte[][] candidates;
+    private int[] histogram;
+    private Deflater deflater;
+    private byte[] compressed;
+
+    PngFilter(PngFormat format, PngOptions options) {
+        this(format, options, DefaultKernels);
+    }
 
-    PngFilter(PngFormat format) {
+    PngFilter(PngFormat format, PngOptions options, FilterKernels kernels) {
         this.format = Objects.requireNonNull(format, "format must not be null");
-        this.filtered = new byte[5][format.bytesPerPixel() + format.bytesPerRow()];
-        this.previous = new byte[format.bytesPerPixel() + format.bytesPerRow()];
-        this.current = new byte[format.bytesPerPixel() + format.bytesPerRow()];
+        this.strategy = options.filterStrategy();
+        this.kernels = Objects.requireNonNull(kernels, "kernels must not be null");
+        this.bpp = format.bytesPerPixel();
+        this.end = format.bytesPerPixel() + format.bytesPerRow();
+        this.filtered = new byte[end];
+        this.zeros = new byte[end];
+        this.previous = new byte[end];
+        this.current = new byte[end];
+
+        if (strategy == FilterStrategy.ENTROPY || strategy == FilterStrategy.BRUTE_FORCE) {
+            candidates = new byte[5][end];
+        }
+        if (strategy == FilterStrategy.ENTROPY) {
+            histogram = new int[256];
+        } else if (strategy == FilterStrategy.BRUTE_FORCE) {
+            deflater = new Deflater(options.compressionLevel());
+            deflater.setStrategy(options.compressionStrategy().value());
+            compressed = new byte[1024];
+        }
     }
 
-    public byte[] bestRow(int method) {
-        return filtered[method];
+    PngFormat format() {
+        return format;
+    }
+
+    /**
+     * Returns the row filtered by the last call to {@link #filter(byte[], int)}.
+     * The filtered data starts at offset {@link PngFormat#bytesPerPixel()}.
+     */
+    byte[] bestRow() {
+        return best;
+    }
+
+    /**
+     * Uses the given row as the previous row for the next call to {@link #filter(byte[], int)}
+     */
+    void seed(byte[] row, int offset) {
+        System.arraycopy(row, offset, previous, bpp, format.bytesPerRow());
+    }
+
+    /**
+     * Uses a row of the source as the previous row for the next call to {@link #filter(RowSource, int)}
+     */
+    void seed(RowSource source, int row) {
+        source.copyRow(row, previous, bpp);
+    }
+
+    /**
+     * Forgets the previous row, so a new image can be filtered
+     */
+    void reset() {
+        Arrays.fill(previous, (byte) 0);
+    }
+
+    /**
+     * Continues from where the other filter left off, by copying its previous row
+     */
+    void seed(PngFilter other) {
+        System.arraycopy(other.previous, 0, previous, 0, previous.length);
     }
 
     int filter(byte[] row, int offset) {
-        int bpp = format.bytesPerPixel();
-        int bpr = format.bytesPerRow();
-
-        byte[] nRow = filtered[0];
-        byte[] sRow = filtered[1];
-        byte[] uRow = filtered[2];
-        byte[] aRow = filtered[3];
-        byte[] pRow = filtered[4];
-
-        System.arraycopy(row, offset, current, bpp, bpr);
-        System.arraycopy(row, offset, nRow, bpp, bpr);
-        for (int i = bpp; i < bpp + bpr; i++) {
-            int x = Byte.toUnsignedInt(current[i]);
-            int a = Byte.toUnsignedInt(current[i - bpp]);
-            int b = Byte.toUnsignedInt(previous[i]);
-            int c = Byte.toUnsignedInt(previous[i - bpp]);
-
-            nRow[i] = (byte) (x);
-            sRow[i] = (byte) (x - a);
-            uRow[i] = (byte) (x - b);
-            aRow[i] = (byte) (x - (a + b >> 1));
-            pRow[i] = (byte) (x - paeth(a, b, c));
+        System.arraycopy(row, offset, current, bpp, format.bytesPerRow());
+        return filterCurrent();
+    }
+
+    /**
+     * Filters a row of the source, which is converted straight into the scratch buffer
+     */
+    int filter(RowSource source, int row) {
+        source.copyRow(row, current, bpp);
+        return filterCurrent();
+    }
+
+    private int filterCurrent() {
+        int method;
+        if (!strategy.isFixed() && Arrays.equals(current, bpp, end, previous, bpp, end)) {
+            method = Up;
+            best = zeros;
+        } else if (strategy == FilterStrategy.ADAPTIVE) {
+            method = findBestAdaptive();
+            best = method == Paeth ? filtered : write(method, filtered);
+        } else if (strategy.isFixed()) {
+            method = strategy.ordinal();
+            best = write(method, filtered);
+        } else {
+            for (int i = 0; i < 5; i++) {
+                candidates[i] = write(i, candidates[i]);
+            }
+            method = findBest();
+            best = candidates[method];
         }
 
-        int best = findBest();
         byte[] temp = previous;
         previous = current;
         current = temp;
-        return best;
+        return method;
+    }
+
+    void close() {
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    private int findBestAdaptive() {
+        int bestMethod = None;
+        long bestSad = sad(None, Long.MAX_VALUE);
+        for (int method = Sub; method <= Paeth; method++) {
+            long sad = sad(method, bestSad);
+            if (sad < bestSad) {
+                bestMethod = method;
+                bestSad = sad;
+            }
+        }
+        return bestMethod;
+    }
+
+    private long sad(int method, long limit) {
+        switch (method) {
+            case None:
+                return kernels.sadNone(current, bpp, end, limit);
+            case Sub:
+                return kernels.sadSub(current, bpp, end, limit);
+            case Up:
+                return kernels.sadUp(current, previous, bpp, end, limit);
+            case Average:
+                return kernels.sadAverage(current, previous, bpp, end, limit);
+            case Paeth:
+                // Paeth is scored last and is the most expensive, so its output is written while scoring
+                return kernels.sadPaeth(current, previous, filtered, bpp, end, limit);
+            default:
+                throw new IllegalArgumentException("Unknown filter method: " + method);
+        }
+    }
+
+    /**
+     * Writes the output of the given filter, and returns the array that holds it.
+     * For the None filter that is the current row itself, so nothing gets copied.
+     */
+    private byte[] write(int method, byte[] out) {
+        switch (method) {
+            case None:
+                return current;
+            case Sub:
+                kernels.writeSub(current, out, bpp, end);
+                return out;
+            case Up:
+                kernels.writeUp(current, previous, out, bpp, end);
+                return out;
+            case Average:
+                kernels.writeAverage(current, previous, out, bpp, end);
+                return out;
+            case Paeth:
+                kernels.writePaeth(current, previous, out, bpp, end);
+                return out;
+            default:
+                throw new IllegalArgumentException("Unknown filter method: " + method);
+        }
     }
 
     private int findBest() {
         int bestRow = 0;
-        int bestSad = Integer.MAX_VALUE;
+        double bestScore = Double.POSITIVE_INFINITY;
         for (int i = 0; i < 5; i++) {
-            int sad = 0;
-            for (byte pixel : filtered[i]) {
-                sad += Math.abs(pixel);
-            }
-            if (sad < bestSad) {
+            double score = score(i);
+            if (score < bestScore) {
                 bestRow = i;
-                bestSad = sad;
+                bestScore = score;
             }
         }
         return bestRow;
     }
 
-    private static int paeth(int a, int b, int c) {
-        int p = a + b - c;
-        int pa = Math.abs(p - a);
-        int pb = Math.abs(p - b);
-        int pc = Math.abs(p - c);
+    private double score(int method) {
+        switch (strategy) {
+            case ENTROPY:
+                return entropy(candidates[method]);
+            case BRUTE_FORCE:
+                return compressedSize(candidates[method]);
+            default:
+                throw new IllegalStateException("Unexpected strategy: " + strategy);
+        }
+    }
+
+    private double entropy(byte[] row) {
+        Arrays.fill(histogram, 0);
+        for (int i = bpp; i < end; i++) {
+            histogram[Byte.toUnsignedInt(row[i])]++;
+        }
 
-        if (pa <= pb && pa <= pc) {
-            return a;
+        // Entropy is n * log(n) - sum(c * log(c)), and n is the same for every filter
+        double sum = 0;
+        for (int count : histogram) {
+            if (count > 1) {
+                sum += count * Math.log(count);
+            }
         }
-        if (pb <= pc) {
-            return b;
+        return -sum;
+    }
+
+    private int compressedSize(byte[] row) {
+        deflater.reset();
+        deflater.setInput(row, bpp, end - bpp);
+        deflater.finish();
+
+        int size = 0;
+        while (!deflater.finished()) {
+            size += deflater.deflate(compressed);
         }
-        return c;
+        return size;
     }
 }
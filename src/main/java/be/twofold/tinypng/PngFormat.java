@@ -3,13 +3,17 @@ package be.twofold.tinypng;
 import java.util.*;
 
 public final class PngFormat {
+    // A filtered row, with its filter byte and padding pixel, must still fit in an array
+    private static final long MaxBytesPerRow = Integer.MAX_VALUE - 64;
+
     private final int width;
     private final int height;
     private final BitDepth bitDepth;
     private final ColorType colorType;
     private final PngPalette palette;
+    private final InterlaceMethod interlaceMethod;
 
-    private PngFormat(int width, int height, BitDepth bitDepth, ColorType colorType, PngPalette palette) {
+    private PngFormat(int width, int height, BitDepth bitDepth, ColorType colorType, PngPalette palette, InterlaceMethod interlaceMethod) {
         if (width <= 0) {
             throw new PngException("width must be greater than 0");
         }
@@ -18,6 +22,7 @@ public final class PngFormat {
         }
         Objects.requireNonNull(bitDepth, "bitDepth must not be null");
         Objects.requireNonNull(colorType, "colorType must not be null");
+        Objects.requireNonNull(interlaceMethod, "interlaceMethod must not be null");
         if ((bitDepth == BitDepth.ONE || bitDepth == BitDepth.TWO || bitDepth == BitDepth.FOUR)
             && (colorType == ColorType.RGB || colorType == ColorType.GRAY_ALPHA || colorType == ColorType.RGB_ALPHA)
             || (bitDepth == BitDepth.SIXTEEN && colorType == ColorType.INDEXED)
@@ -27,20 +32,27 @@ public final class PngFormat {
         if (colorType == ColorType.INDEXED && palette == null) {
             throw new PngException("palette must not be null for colorType indexed");
         }
+        if (colorType == ColorType.INDEXED && palette.size() > 1 << bitDepth.value()) {
+            throw new PngException("palette with " + palette.size() + " colors does not fit in bit depth " + bitDepth);
+        }
+        if (bytesPerRow(width, bitDepth, colorType) > MaxBytesPerRow) {
+            throw new PngException("width " + width + " is too large, a row does not fit in an array");
+        }
 
         this.width = width;
         this.height = height;
         this.bitDepth = bitDepth;
         this.colorType = colorType;
         this.palette = palette;
+        this.interlaceMethod = interlaceMethod;
     }
 
     public static PngFormat of(int width, int height, BitDepth bitDepth, ColorType colorType) {
-        return new PngFormat(width, height, bitDepth, colorType, null);
+        return new PngFormat(width, height, bitDepth, colorType, null, InterlaceMethod.NONE);
     }
 
     public static PngFormat indexed(int width, int height, BitDepth bitDepth, PngPalette palette) {
-        return new PngFormat(width, height, BitDepth.EIGHT, ColorType.INDEXED, palette);
+        return new PngFormat(width, height, bitDepth, ColorType.INDEXED, palette, InterlaceMethod.NONE);
     }
 
     public int width() {
@@ -63,6 +75,10 @@ public final class PngFormat {
         return Optional.ofNullable(palette);
     }
 
+    public InterlaceMethod interlaceMethod() {
+        return interlaceMethod;
+    }
+
     public int bytesPerChannel() {
         return (bitDepth.value() + 7) / 8;
     }
@@ -72,20 +88,55 @@ public final class PngFormat {
     }
 
     public int bytesPerRow() {
-        var bitsPerRow = width * colorType.samples() * bitDepth.value();
-        return (bitsPerRow + 7) / 8;
+        return (int) bytesPerRow(width, bitDepth, colorType);
     }
 
+    /**
+     * Returns the size of the whole image, which has to fit in an array
+     *
+     * @throws PngException If the image is larger than 2 GB, in which case it has to be written in rows or bands
+     */
     public int bytesPerImage() {
-        return bytesPerRow() * height;
+        long bytesPerImage = bytesPerImageLong();
+        if (bytesPerImage > Integer.MAX_VALUE) {
+            throw new PngException("Image of " + bytesPerImage + " bytes does not fit in an array, write it in rows or bands");
+        }
+        return (int) bytesPerImage;
+    }
+
+    /**
+     * Returns the size of the whole image, which can be larger than 2 GB
+     */
+    public long bytesPerImageLong() {
+        return (long) bytesPerRow() * height;
+    }
+
+    /**
+     * Returns this format with the given interlace method. The image data that is passed in
+     * is not interlaced, it is only stored interlaced in the file.
+     */
+    public PngFormat withInterlaceMethod(InterlaceMethod interlaceMethod) {
+        return new PngFormat(width, height, bitDepth, colorType, palette, interlaceMethod);
     }
 
     PngFormat withBitDepth(BitDepth bitDepth) {
-        return new PngFormat(width, height, bitDepth, colorType, palette);
+        return new PngFormat(width, height, bitDepth, colorType, palette, interlaceMethod);
     }
 
     PngFormat withColorType(ColorType colorType) {
-        return new PngFormat(width, height, bitDepth, colorType, palette);
+        return new PngFormat(width, height, bitDepth, colorType, palette, interlaceMethod);
+    }
+
+    /**
+     * Returns a non-interlaced format with the given size, as used for a single interlace pass
+     */
+    PngFormat withSize(int width, int height) {
+        return new PngFormat(width, height, bitDepth, colorType, palette, InterlaceMethod.NONE);
+    }
+
+    private static long bytesPerRow(int width, BitDepth bitDepth, ColorType colorType) {
+        long bitsPerRow = (long) width * colorType.samples() * bitDepth.value();
+        return (bitsPerRow + 7) / 8;
     }
 
     @Override
@@ -95,7 +146,8 @@ public final class PngFormat {
             "height=" + height + ", " +
             "colorType=" + colorType + ", " +
             "bitDepth=" + bitDepth + ", " +
-            "palette=" + palette +
+            "palette=" + palette + ", " +
+            "interlaceMethod=" + interlaceMethod +
             ")";
     }
 }
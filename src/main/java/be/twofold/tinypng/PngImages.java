@@ -0,0 +1,184 @@
+package be.twofold.tinypng;
+
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Encodes a {@link BufferedImage}, reading the rows straight from the array behind its raster.
+ * <p>
+ * The common image types map directly to a PNG format: packed ARGB and RGB ints, ABGR and BGR bytes,
+ * 8-bit and 16-bit gray, and indexed images with an {@link IndexColorModel}. Any other image is
+ * converted one row at a time using {@link BufferedImage#getRGB}.
+ * <p>
+ * This needs the {@code java.desktop} module, which is an optional dependency of this library.
+ */
+public final class PngImages {
+    private PngImages() {
+    }
+
+    /**
+     * Returns the format the image is written in
+     */
+    public static PngFormat format(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return PngFormat.of(width, height, BitDepth.EIGHT, ColorType.RGB);
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                return PngFormat.of(width, height, BitDepth.EIGHT, ColorType.RGB_ALPHA);
+            case BufferedImage.TYPE_BYTE_GRAY:
+                return PngFormat.of(width, height, BitDepth.EIGHT, ColorType.GRAY);
+            case BufferedImage.TYPE_USHORT_GRAY:
+                return PngFormat.of(width, height, BitDepth.SIXTEEN, ColorType.GRAY);
+            case BufferedImage.TYPE_BYTE_BINARY:
+            case BufferedImage.TYPE_BYTE_INDEXED:
+                int bits = image.getSampleModel().getSampleSize(0);
+                return PngFormat.indexed(width, height, bitDepth(bits), palette((IndexColorModel) image.getColorModel(), bits));
+            default:
+                ColorType colorType = image.getColorModel().hasAlpha() ? ColorType.RGB_ALPHA : ColorType.RGB;
+                return PngFormat.of(width, height, BitDepth.EIGHT, colorType);
+        }
+    }
+
+    public static void write(BufferedImage image, OutputStream output) {
+        write(image, output, PngOptions.defaults());
+    }
+
+    public static void write(BufferedImage image, OutputStream output, PngOptions options) {
+        PngFormat format = format(image);
+        RowSource source = source(image, format);
+        try (PngEncoder encoder = new PngEncoder(output, format, options)) {
+            if (options.optimize()) {
+                encoder.writeImage(toBytes(source, format));
+            } else {
+                encoder.writeHeader().writeImage(source);
+            }
+        }
+    }
+
+    /**
+     * Writes the image using a writer that was created for {@link #format(BufferedImage)}
+     *
+     * @param writer The writer to write to
+     * @param image  The image to write
+     * @throws IllegalArgumentException If the writer was created for a different size, color type or bit depth
+     */
+    public static void write(PngWriter writer, BufferedImage image) {
+        PngFormat format = format(image);
+        PngFormat expected = writer.format();
+        if (format.width() != expected.width() ||
+            format.height() != expected.height() ||
+            format.colorType() != expected.colorType() ||
+            format.bitDepth() != expected.bitDepth()) {
+            throw new IllegalArgumentException("image has format " + format + ", but the writer expects " + expected);
+        }
+        writer.writeImage(source(image, format));
+    }
+
+    private static RowSource source(BufferedImage image, PngFormat format) {
+        WritableRaster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        int x = -raster.getSampleModelTranslateX();
+        int y = -raster.getSampleModelTranslateY();
+        int width = image.getWidth();
+
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB: {
+                SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+                int[] data = ((DataBufferInt) buffer).getData();
+                int offset = buffer.getOffset() + model.getOffset(x, y);
+                boolean alpha = image.getType() == BufferedImage.TYPE_INT_ARGB;
+                return RowSource.ofArgb(data, offset, model.getScanlineStride(), width, alpha);
+            }
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+                byte[] data = ((DataBufferByte) buffer).getData();
+                int offset = buffer.getOffset() + y * model.getScanlineStride() + x * model.getPixelStride();
+                return RowSource.ofInterleaved(data, offset, model.getScanlineStride(), width, model.getBandOffsets());
+            }
+            case BufferedImage.TYPE_BYTE_GRAY:
+            case BufferedImage.TYPE_BYTE_INDEXED: {
+                ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+                byte[] data = ((DataBufferByte) buffer).getData();
+                int offset = buffer.getOffset() + model.getOffset(x, y);
+                return RowSource.of(data, offset, model.getScanlineStride(), width);
+            }
+            case BufferedImage.TYPE_USHORT_GRAY: {
+                ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+                short[] data = ((DataBufferUShort) buffer).getData();
+                int offset = buffer.getOffset() + model.getOffset(x, y);
+                return RowSource.of(data, offset, model.getScanlineStride(), width);
+            }
+            case BufferedImage.TYPE_BYTE_BINARY: {
+                MultiPixelPackedSampleModel model = (MultiPixelPackedSampleModel) raster.getSampleModel();
+                int bitOffset = model.getBitOffset(x);
+                if (bitOffset % 8 != 0) {
+                    // A sub-image that does not start on a byte boundary, so the samples have to be packed again
+                    return packedSource(raster, model.getPixelBitStride(), format.bytesPerRow());
+                }
+                byte[] data = ((DataBufferByte) buffer).getData();
+                int offset = buffer.getOffset() + model.getOffset(x, y);
+                return RowSource.of(data, offset, model.getScanlineStride(), format.bytesPerRow());
+            }
+            default: {
+                boolean alpha = format.colorType() == ColorType.RGB_ALPHA;
+                return (row, dst, offset) -> {
+                    int[] argb = image.getRGB(0, row, width, 1, null, 0, width);
+                    RowSource.ofArgb(argb, 0, width, width, alpha).copyRow(0, dst, offset);
+                };
+            }
+        }
+    }
+
+    private static RowSource packedSource(Raster raster, int bits, int bytesPerRow) {
+        int width = raster.getWidth();
+        int minX = raster.getMinX();
+        int minY = raster.getMinY();
+        return (row, dst, offset) -> {
+            int[] samples = raster.getSamples(minX, minY + row, width, 1, 0, (int[]) null);
+            Arrays.fill(dst, offset, offset + bytesPerRow, (byte) 0);
+            for (int i = 0, bit = 0; i < width; i++, bit += bits) {
+                dst[offset + (bit >> 3)] |= (byte) (samples[i] << (8 - bits - (bit & 7)));
+            }
+        };
+    }
+
+    private static byte[] toBytes(RowSource source, PngFormat format) {
+        int bytesPerRow = format.bytesPerRow();
+        byte[] result = new byte[format.bytesPerImage()];
+        for (int row = 0; row < format.height(); row++) {
+            source.copyRow(row, result, row * bytesPerRow);
+        }
+        return result;
+    }
+
+    private static BitDepth bitDepth(int bits) {
+        switch (bits) {
+            case 1:
+                return BitDepth.ONE;
+            case 2:
+                return BitDepth.TWO;
+            case 4:
+                return BitDepth.FOUR;
+            case 8:
+                return BitDepth.EIGHT;
+            default:
+                throw new PngException("Unsupported indexed bit depth: " + bits);
+        }
+    }
+
+    private static PngPalette palette(IndexColorModel model, int bits) {
+        int size = Math.min(model.getMapSize(), 1 << bits);
+        List<PngPalette.Color> colors = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            colors.add(new PngPalette.Color(model.getRed(i), model.getGreen(i), model.getBlue(i), model.getAlpha(i)));
+        }
+        return new PngPalette(colors);
+    }
+}
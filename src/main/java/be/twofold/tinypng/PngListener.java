@@ -0,0 +1,27 @@
+package be.twofold.tinypng;
+
+/**
+ * Receives metrics while images are encoded, set with {@link PngOptions#withListener(PngListener)}.
+ * <p>
+ * The callbacks run on the thread that writes the image, so they should return quickly.
+ * Without a listener, nothing is measured or counted at all.
+ */
+public interface PngListener {
+    /**
+     * Called after every IDAT or fdAT chunk is written
+     *
+     * @param rawBytes        The filtered bytes passed to the compressor since the previous chunk.
+     *                        The compressor buffers its input, so this does not exactly match the chunk.
+     * @param compressedBytes The size of the compressed data in the chunk
+     */
+    default void idatWritten(int rawBytes, int compressedBytes) {
+    }
+
+    /**
+     * Called after the last chunk of an image is written
+     *
+     * @param metrics The metrics of the whole image
+     */
+    default void imageWritten(PngMetrics metrics) {
+    }
+}
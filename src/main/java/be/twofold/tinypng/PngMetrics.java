@@ -0,0 +1,115 @@
+package be.twofold.tinypng;
+
+import java.util.*;
+
+/**
+ * What it took to encode a single image.
+ * <p>
+ * The stages are timed on the thread that writes the image, and never overlap: time spent compressing
+ * while filtering is counted as compression, and time spent writing chunks is only counted as writing.
+ * With multiple threads, a stage counts the time spent waiting on the threads that do the work.
+ */
+public final class PngMetrics {
+    long optimizeNanos;
+    long filterNanos;
+    long deflateNanos;
+    long chunkWriteNanos;
+    final long[] filterTypes = new long[5];
+    long idatChunks;
+    long bytesIn;
+    long bytesOut;
+
+    PngMetrics() {
+    }
+
+    // Every stage keeps a clock that stops while the stages inside it run,
+    // so a start is the current time minus the time those stages had so far
+
+    long startFilter() {
+        return System.nanoTime() - deflateNanos - chunkWriteNanos;
+    }
+
+    void endFilter(long start) {
+        filterNanos += System.nanoTime() - deflateNanos - chunkWriteNanos - start;
+    }
+
+    long startDeflate() {
+        return System.nanoTime() - chunkWriteNanos;
+    }
+
+    void endDeflate(long start) {
+        deflateNanos += System.nanoTime() - chunkWriteNanos - start;
+    }
+
+    /**
+     * Returns the time spent reducing the image before encoding, if {@link PngOptions#optimize()} is enabled
+     */
+    public long optimizeNanos() {
+        return optimizeNanos;
+    }
+
+    /**
+     * Returns the time spent filtering the rows, including converting them from the source
+     */
+    public long filterNanos() {
+        return filterNanos;
+    }
+
+    /**
+     * Returns the time spent compressing the filtered rows
+     */
+    public long deflateNanos() {
+        return deflateNanos;
+    }
+
+    /**
+     * Returns the time spent writing the IDAT chunks to the output
+     */
+    public long chunkWriteNanos() {
+        return chunkWriteNanos;
+    }
+
+    /**
+     * Returns the number of rows that use the given filter type
+     *
+     * @param filterType The filter type, from 0 (None) to 4 (Paeth)
+     */
+    public long filterTypeCount(int filterType) {
+        return filterTypes[filterType];
+    }
+
+    /**
+     * Returns the number of IDAT or fdAT chunks
+     */
+    public long idatChunks() {
+        return idatChunks;
+    }
+
+    /**
+     * Returns the number of filtered bytes that went into the compressor, filter types included
+     */
+    public long bytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * Returns the number of compressed bytes that came out of the compressor
+     */
+    public long bytesOut() {
+        return bytesOut;
+    }
+
+    @Override
+    public String toString() {
+        return "PngMetrics(" +
+            "optimizeNanos=" + optimizeNanos + ", " +
+            "filterNanos=" + filterNanos + ", " +
+            "deflateNanos=" + deflateNanos + ", " +
+            "chunkWriteNanos=" + chunkWriteNanos + ", " +
+            "filterTypes=" + Arrays.toString(filterTypes) + ", " +
+            "idatChunks=" + idatChunks + ", " +
+            "bytesIn=" + bytesIn + ", " +
+            "bytesOut=" + bytesOut +
+            ")";
+    }
+}
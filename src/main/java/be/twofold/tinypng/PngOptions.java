@@ -0,0 +1,207 @@
+package be.twofold.tinypng;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Options that control how an image gets encoded.
+ * <p>
+ * Instances are immutable, every {@code with} method returns a new instance.
+ */
+public final class PngOptions {
+    private static final PngOptions Default = new PngOptions(
+        1, null, Deflater.BEST_SPEED, CompressionStrategy.DEFAULT, CompressorType.ZLIB, 32 * 1024, FilterStrategy.ADAPTIVE, false, null);
+
+    private final int threads;
+    private final Executor executor;
+    private final int compressionLevel;
+    private final CompressionStrategy compressionStrategy;
+    private final CompressorType compressorType;
+    private final int idatSize;
+    private final FilterStrategy filterStrategy;
+    private final boolean optimize;
+    private final PngListener listener;
+
+    private PngOptions(int threads, Executor executor, int compressionLevel, CompressionStrategy compressionStrategy, CompressorType compressorType, int idatSize, FilterStrategy filterStrategy, boolean optimize, PngListener listener) {
+        if (threads < 1) {
+            throw new PngException("threads must be greater than 0");
+        }
+        if (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new PngException("compressionLevel must be between 0 and 9");
+        }
+        Objects.requireNonNull(compressionStrategy, "compressionStrategy must not be null");
+        Objects.requireNonNull(compressorType, "compressorType must not be null");
+        if (idatSize <= 0) {
+            throw new PngException("idatSize must be greater than 0");
+        }
+        Objects.requireNonNull(filterStrategy, "filterStrategy must not be null");
+
+        this.threads = threads;
+        this.executor = executor;
+        this.compressionLevel = compressionLevel;
+        this.compressionStrategy = compressionStrategy;
+        this.compressorType = compressorType;
+        this.idatSize = idatSize;
+        this.filterStrategy = filterStrategy;
+        this.optimize = optimize;
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the default options, which encode on the calling thread only,
+     * with adaptive filtering, at the fastest compression level, in IDAT chunks of 32 KB
+     *
+     * @return The default options
+     */
+    public static PngOptions defaults() {
+        return Default;
+    }
+
+    public int threads() {
+        return threads;
+    }
+
+    public Executor executor() {
+        return executor != null ? executor : ForkJoinPool.commonPool();
+    }
+
+    public int compressionLevel() {
+        return compressionLevel;
+    }
+
+    public CompressionStrategy compressionStrategy() {
+        return compressionStrategy;
+    }
+
+    public CompressorType compressorType() {
+        return compressorType;
+    }
+
+    public int idatSize() {
+        return idatSize;
+    }
+
+    public FilterStrategy filterStrategy() {
+        return filterStrategy;
+    }
+
+    public boolean optimize() {
+        return optimize;
+    }
+
+    public Optional<PngListener> listener() {
+        return Optional.ofNullable(listener);
+    }
+
+    /**
+     * Sets the number of threads used to compress the image data.
+     * When more than one thread is used, the image data is split in segments which are compressed in parallel.
+     *
+     * @param threads The number of threads, must be at least 1
+     * @return The new options
+     */
+    public PngOptions withThreads(int threads) {
+        return new PngOptions(threads, executor, compressionLevel, compressionStrategy, compressorType, idatSize, filterStrategy, optimize, listener);
+    }
+
+    /**
+     * Sets the executor that runs the parallel work, defaults to the common fork join pool
+     *
+     * @param executor The executor to use
+     * @return The new options
+     */
+    public PngOptions withExecutor(Executor executor) {
+        Objects.requireNonNull(executor, "executor must not be null");
+        return new PngOptions(threads, executor, compressionLevel, compressionStrategy, compressorType, idatSize, filterStrategy, optimize, listener);
+    }
+
+    /**
+     * Sets the deflate compression level, from 0 (stored, no compression) to 9 (best compression)
+     *
+     * @param compressionLevel The compression level
+     * @return The new options
+     */
+    public PngOptions withCompressionLevel(int compressionLevel) {
+        return new PngOptions(threads, executor, compressionLevel, compressionStrategy, compressorType, idatSize, filterStrategy, optimize, listener);
+    }
+
+    /**
+     * Sets the deflate compression strategy
+     *
+     * @param compressionStrategy The compression strategy
+     * @return The new options
+     */
+    public PngOptions withCompressionStrategy(CompressionStrategy compressionStrategy) {
+        return new PngOptions(threads, executor, compressionLevel, compressionStrategy, compressorType, idatSize, filterStrategy, optimize, listener);
+    }
+
+    /**
+     * Sets the implementation of deflate that compresses the image data
+     *
+     * @param compressorType The compressor type
+     * @return The new options
+     */
+    public PngOptions withCompressorType(CompressorType compressorType) {
+        return new PngOptions(threads, executor, compressionLevel, compressionStrategy, compressorType, idatSize, filterStrategy, optimize, listener);
+    }
+
+    /**
+     * Sets the maximum number of bytes in a single IDAT chunk
+     *
+     * @param idatSize The maximum size of an IDAT chunk
+     * @return The new options
+     */
+    public PngOptions withIdatSize(int idatSize) {
+        return new PngOptions(threads, executor, compressionLevel, compressionStrategy, compressorType, idatSize, filterStrategy, optimize, listener);
+    }
+
+    /**
+     * Sets the strategy used to pick the filter type of each row
+     *
+     * @param filterStrategy The filter strategy
+     * @return The new options
+     */
+    public PngOptions withFilterStrategy(FilterStrategy filterStrategy) {
+        return new PngOptions(threads, executor, compressionLevel, compressionStrategy, compressorType, idatSize, filterStrategy, optimize, listener);
+    }
+
+    /**
+     * Enables lossless reductions of the image before it gets encoded, like dropping an alpha channel
+     * that is fully opaque. This only applies to {@link PngEncoder#writeImage(byte[])}, as the whole
+     * image has to be inspected before the header can be written.
+     *
+     * @param optimize Whether to optimize the image
+     * @return The new options
+     */
+    public PngOptions withOptimize(boolean optimize) {
+        return new PngOptions(threads, executor, compressionLevel, compressionStrategy, compressorType, idatSize, filterStrategy, optimize, listener);
+    }
+
+    /**
+     * Sets a listener that receives metrics about every image that is encoded.
+     * Without a listener, nothing is measured.
+     *
+     * @param listener The listener
+     * @return The new options
+     */
+    public PngOptions withListener(PngListener listener) {
+        Objects.requireNonNull(listener, "listener must not be null");
+        return new PngOptions(threads, executor, compressionLevel, compressionStrategy, compressorType, idatSize, filterStrategy, optimize, listener);
+    }
+
+    @Override
+    public String toString() {
+        return "PngOptions(" +
+            "threads=" + threads + ", " +
+            "executor=" + executor + ", " +
+            "compressionLevel=" + compressionLevel + ", " +
+            "compressionStrategy=" + compressionStrategy + ", " +
+            "compressorType=" + compressorType + ", " +
+            "idatSize=" + idatSize + ", " +
+            "filterStrategy=" + filterStrategy + ", " +
+            "optimize=" + optimize + ", " +
+            "listener=" + listener +
+            ")";
+    }
+}
@@ -29,11 +29,17 @@ public final class PngPalette extends AbstractList<PngPalette.Color> {
         private final byte red;
         private final byte green;
         private final byte blue;
+        private final byte alpha;
 
         public Color(int red, int green, int blue) {
+            this(red, green, blue, 255);
+        }
+
+        public Color(int red, int green, int blue, int alpha) {
             this.red = toByteExact(red);
             this.green = toByteExact(green);
             this.blue = toByteExact(blue);
+            this.alpha = toByteExact(alpha);
         }
 
         private byte toByteExact(int i) {
@@ -54,5 +60,9 @@ public final class PngPalette extends AbstractList<PngPalette.Color> {
         public byte blue() {
             return blue;
         }
+
+        public byte alpha() {
+            return alpha;
+        }
     }
 }
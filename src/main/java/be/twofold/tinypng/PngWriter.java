@@ -1,21 +1,64 @@
 package be.twofold.tinypng;
 
+import java.nio.*;
 import java.util.*;
+import java.util.function.*;
+import java.util.zip.*;
 
 /**
  * After writing the header, this class will allow you to write images.
  * <p>
- * For now, only a single image is supported
+ * An image can either be written in one go, using {@link #writeImage(byte[])},
+ * or incrementally, using {@link #writeRows(byte[], int, int)} followed by {@link #finish()}.
+ * <p>
+ * Besides raw PNG sample data in a {@code byte[]}, rows can be read from a {@link ByteBuffer},
+ * from packed ARGB pixels in an {@code int[]}, or from 16-bit samples in a {@code short[]}.
+ * These are converted row by row while filtering, so they are never copied as a whole.
+ * <p>
+ * Images that are too large to hold in memory, including those over 2 GB, can be written
+ * in bands using {@link #writeBands(int, BandProducer)}.
+ * <p>
+ * An {@link InterlaceMethod#ADAM7} image needs all its rows for the first pass, so it has to be written in one go.
+ * The output is flushed after every pass, so a client can start rendering before the whole image has arrived.
+ * <p>
+ * When every row of an image that is written in one go is the same, like a single color, only the first two rows
+ * are filtered and compressed, and the data for the other rows is written directly.
+ * <p>
+ * This writes a single image, animations are written using an {@link ApngWriter}
  */
 public final class PngWriter {
     private final PngFormat format;
+    private final Workspace workspace;
+    private final boolean ownsWorkspace;
     private final PngFilter filter;
+    private final ParallelFilter parallelFilter;
+    private final PngMetrics metrics;
     private IDATWriter writer;
+    private int rowsWritten;
+
+    PngWriter(PngFormat format, ChunkWriter writer, Workspace workspace, boolean ownsWorkspace) {
+        this(format, writer, workspace, ownsWorkspace, null);
+    }
 
-    PngWriter(PngFormat format, ChunkWriter writer) {
+    /**
+     * Creates a writer for the data of a single animation frame, if a sequence is given
+     */
+    PngWriter(PngFormat format, ChunkWriter writer, Workspace workspace, boolean ownsWorkspace, IntSupplier sequence) {
         this.format = Objects.requireNonNull(format);
-        this.filter = new PngFilter(format);
-        this.writer = new IDATWriter(writer);
+        this.workspace = Objects.requireNonNull(workspace);
+        this.ownsWorkspace = ownsWorkspace;
+        this.filter = workspace.filter(format);
+
+        PngOptions options = workspace.options();
+        this.metrics = options.listener().isPresent() ? new PngMetrics() : null;
+        this.writer = new IDATWriter(writer, workspace, format, sequence, metrics);
+        this.parallelFilter = options.threads() > 1
+            ? new ParallelFilter(format, options, filter, this.writer, metrics)
+            : null;
+    }
+
+    PngFormat format() {
+        return format;
     }
 
     /**
@@ -24,20 +67,354 @@ public final class PngWriter {
      * @param image The image to write
      */
     public void writeImage(byte[] image) {
-        if (writer == null) {
-            throw new IllegalStateException("Image has already been written");
+        checkImageSize(image.length, format.bytesPerImage());
+        if (isUniform(image)) {
+            writeUniform(image);
+        } else {
+            writeRows(image, 0, format.height());
+        }
+        finish();
+    }
+
+    /**
+     * Writes a single image to the output, reading it from the remaining bytes of the buffer
+     *
+     * @param image The image to write, which can be a heap or a direct buffer
+     */
+    public void writeImage(ByteBuffer image) {
+        checkImageSize(image.remaining(), format.bytesPerImage());
+        writeRows(image, format.height());
+        finish();
+    }
+
+    /**
+     * Writes a single image to the output, from packed ARGB pixels.
+     * Only supported for 8-bit {@link ColorType#RGB} and {@link ColorType#RGB_ALPHA} images.
+     *
+     * @param image The pixels to write
+     */
+    public void writeImage(int[] image) {
+        checkImageSize(image.length, (long) format.width() * format.height());
+        writeRows(image, 0, format.height());
+        finish();
+    }
+
+    /**
+     * Writes a single image to the output, from 16-bit samples.
+     * Only supported for images with a bit depth of 16.
+     *
+     * @param image The samples to write
+     */
+    public void writeImage(short[] image) {
+        checkImageSize(image.length, (long) samplesPerRow() * format.height());
+        writeRows(image, 0, format.height());
+        finish();
+    }
+
+    /**
+     * Writes a number of consecutive rows to the output, continuing where the previous call left off.
+     * <p>
+     * Only the current and the previous row are kept around, so the full image never has to be in memory.
+     *
+     * @param src      The array containing the rows
+     * @param offset   The offset of the first row in the array
+     * @param rowCount The number of rows to write
+     */
+    public void writeRows(byte[] src, int offset, int rowCount) {
+        ensureOpen();
+        int bytesPerRow = format.bytesPerRow();
+        checkRows(offset, rowCount, bytesPerRow, src.length);
+        writeRows(RowSource.of(src, offset, bytesPerRow, bytesPerRow), rowCount);
+    }
+
+    /**
+     * Writes a number of consecutive rows to the output, reading them from the buffer's position.
+     * The position is advanced past the rows that were read.
+     *
+     * @param src      The buffer containing the rows, which can be a heap or a direct buffer
+     * @param rowCount The number of rows to write
+     */
+    public void writeRows(ByteBuffer src, int rowCount) {
+        ensureOpen();
+        int bytesPerRow = format.bytesPerRow();
+        checkRows(0, rowCount, bytesPerRow, src.remaining());
+        writeRows(RowSource.of(src, bytesPerRow), rowCount);
+        src.position(src.position() + rowCount * bytesPerRow);
+    }
+
+    /**
+     * Writes a number of consecutive rows to the output, from packed ARGB pixels.
+     * The alpha channel is dropped for {@link ColorType#RGB} images.
+     *
+     * @param src      The array containing the pixels
+     * @param offset   The offset of the first pixel in the array
+     * @param rowCount The number of rows to write
+     */
+    public void writeRows(int[] src, int offset, int rowCount) {
+        ensureOpen();
+        if (format.bitDepth() != BitDepth.EIGHT
+            || (format.colorType() != ColorType.RGB && format.colorType() != ColorType.RGB_ALPHA)) {
+            throw new PngException("ARGB pixels can only be written to an 8-bit RGB or RGB_ALPHA image");
+        }
+        checkRows(offset, rowCount, format.width(), src.length);
+        writeRows(RowSource.ofArgb(src, offset, format.width(), format.width(), format.colorType() == ColorType.RGB_ALPHA), rowCount);
+    }
+
+    /**
+     * Writes a number of consecutive rows to the output, from 16-bit samples
+     *
+     * @param src      The array containing the samples
+     * @param offset   The offset of the first sample in the array
+     * @param rowCount The number of rows to write
+     */
+    public void writeRows(short[] src, int offset, int rowCount) {
+        ensureOpen();
+        if (format.bitDepth() != BitDepth.SIXTEEN) {
+            throw new PngException("16-bit samples can only be written to an image with bit depth 16");
+        }
+        int samplesPerRow = samplesPerRow();
+        checkRows(offset, rowCount, samplesPerRow, src.length);
+        writeRows(RowSource.of(src, offset, samplesPerRow, samplesPerRow), rowCount);
+    }
+
+    /**
+     * Writes the remaining rows of the image in bands, which the producer fills one at a time, and finishes the image.
+     * <p>
+     * Only a single band is held in memory, next to the chunks that are being filtered and compressed,
+     * so memory stays bounded no matter how large the image is. With multiple threads, every band is
+     * filtered and compressed in parallel, and the last row of a band is carried over as the previous
+     * row of the next one, so the output does not depend on the band size.
+     *
+     * @param rowsPerBand The number of rows in a band, the last band can be smaller
+     * @param producer    The producer that fills in the bands
+     */
+    public void writeBands(int rowsPerBand, BandProducer producer) {
+        ensureOpen();
+        Objects.requireNonNull(producer, "producer must not be null");
+        if (rowsPerBand <= 0) {
+            throw new IllegalArgumentException("rowsPerBand must be greater than 0");
+        }
+        int remaining = format.height() - rowsWritten;
+        long bandSize = (long) Math.min(rowsPerBand, remaining) * format.bytesPerRow();
+        if (bandSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A band of " + rowsPerBand + " rows does not fit in an array");
+        }
+
+        byte[] band = new byte[(int) bandSize];
+        while (rowsWritten < format.height()) {
+            int rowCount = Math.min(rowsPerBand, format.height() - rowsWritten);
+            producer.produce(rowsWritten, rowCount, band);
+            writeRows(band, 0, rowCount);
+        }
+        finish();
+    }
+
+    /**
+     * Writes a single image from a source that converts its own rows, without any size checks
+     */
+    void writeImage(RowSource source) {
+        ensureOpen();
+        if (rowsWritten != 0) {
+            throw new IllegalStateException("Rows have already been written");
+        }
+        writeRows(source, format.height());
+        finish();
+    }
+
+    private void writeRows(RowSource source, int rowCount) {
+        if (format.interlaceMethod() == InterlaceMethod.ADAM7
+            && (rowsWritten != 0 || rowCount != format.height())) {
+            throw new IllegalStateException("An interlaced image must be written in one go");
+        }
+
+        if (metrics != null) {
+            long start = metrics.startFilter();
+            filterRows(source, rowCount);
+            metrics.endFilter(start);
+        } else {
+            filterRows(source, rowCount);
+        }
+        rowsWritten += rowCount;
+    }
+
+    /**
+     * Only worth it when there are rows after the second one, which is where the work is skipped.
+     * Interlaced images do not repeat their rows, and at compression level 0 the rows have to be stored as is.
+     */
+    private boolean isUniform(byte[] image) {
+        return format.interlaceMethod() == InterlaceMethod.NONE
+            && format.height() > 2
+            && workspace.options().compressionLevel() != Deflater.NO_COMPRESSION
+            && image.length <= Integer.MAX_VALUE - format.height()
+            && UniformImage.isUniform(image, format.bytesPerRow());
+    }
+
+    private void writeUniform(byte[] image) {
+        long start = metrics != null ? metrics.startFilter() : 0;
+        int bytesPerRow = format.bytesPerRow();
+        byte[] first = filterRow(image, 0);
+        byte[] repeated = filterRow(image, bytesPerRow);
+
+        long deflateStart = metrics != null ? metrics.startDeflate() : 0;
+        byte[] stream = UniformImage.deflate(workspace.compressor(format), first, repeated, format.height());
+        writer.writeStream(stream, image.length + format.height());
+
+        if (metrics != null) {
+            metrics.endDeflate(deflateStart);
+            metrics.filterTypes[first[0]]++;
+            metrics.filterTypes[repeated[0]] += format.height() - 1;
+            metrics.endFilter(start);
+        }
+        rowsWritten = format.height();
+    }
+
+    /**
+     * Returns the filtered row, starting with its filter type
+     */
+    private byte[] filterRow(byte[] image, int offset) {
+        int bytesPerRow = format.bytesPerRow();
+        byte[] row = new byte[bytesPerRow + 1];
+        row[0] = (byte) filter.filter(image, offset);
+        System.arraycopy(filter.bestRow(), format.bytesPerPixel(), row, 1, bytesPerRow);
+        return row;
+    }
+
+    private void filterRows(RowSource source, int rowCount) {
+        if (format.interlaceMethod() == InterlaceMethod.ADAM7) {
+            writeInterlaced(source);
+            return;
         }
-        if (image.length != format.bytesPerImage()) {
-            throw new IllegalArgumentException("image has wrong size, expected " + format.bytesPerImage() + " but was " + image.length);
+
+        if (parallelFilter != null && rowCount > parallelFilter.rowsPerChunk()) {
+            parallelFilter.filter(source, rowCount);
+        } else {
+            int bytesPerPixel = format.bytesPerPixel();
+            int bytesPerRow = format.bytesPerRow();
+            for (int row = 0; row < rowCount; row++) {
+                int filterMethod = filter.filter(source, row);
+                if (metrics != null) {
+                    metrics.filterTypes[filterMethod]++;
+                }
+                writer.write((byte) filterMethod);
+                writer.write(filter.bestRow(), bytesPerPixel, bytesPerRow);
+            }
         }
+    }
 
-        for (int row = 0; row < format.height(); row++) {
-            int filterMethod = filter.filter(image, row * format.bytesPerRow());
-            writer.write((byte) filterMethod);
-            writer.write(filter.bestRow(filterMethod), format.bytesPerPixel(), format.bytesPerRow());
+    /**
+     * Finishes the image, after all rows have been written using {@link #writeRows(byte[], int, int)}
+     */
+    public void finish() {
+        ensureOpen();
+        if (rowsWritten != format.height()) {
+            throw new IllegalStateException("Expected " + format.height() + " rows, but only " + rowsWritten + " were written");
         }
 
         writer.close();
         writer = null;
+        if (ownsWorkspace) {
+            workspace.close();
+        }
+        if (metrics != null) {
+            workspace.options().listener().orElseThrow().imageWritten(metrics);
+        }
+    }
+
+    /**
+     * Gives up on the image without writing anything more, and releases the workspace if the writer owns it
+     */
+    void abort() {
+        if (writer == null) {
+            return;
+        }
+        writer = null;
+        if (ownsWorkspace) {
+            workspace.close();
+        }
+    }
+
+    /**
+     * Adds the time it took to optimize the image to the metrics, if there is a listener
+     */
+    void optimized(long nanos) {
+        if (metrics != null) {
+            metrics.optimizeNanos += nanos;
+        }
+    }
+
+    private void writeInterlaced(RowSource source) {
+        byte[] row = new byte[format.bytesPerRow()];
+        for (int pass = 0; pass < Adam7.Passes; pass++) {
+            int width = Adam7.width(format, pass);
+            int height = Adam7.height(format, pass);
+            if (width == 0 || height == 0) {
+                continue;
+            }
+
+            PngFormat passFormat = format.withSize(width, height);
+            PngFilter passFilter = new PngFilter(passFormat, workspace.options());
+            try {
+                int bytesPerPixel = passFormat.bytesPerPixel();
+                int bytesPerRow = passFormat.bytesPerRow();
+                byte[] passRow = new byte[bytesPerRow];
+                for (int y = 0; y < height; y++) {
+                    source.copyRow(Adam7.sourceRow(pass, y), row, 0);
+                    Adam7.extract(format, row, passRow, pass, width);
+                    int filterMethod = passFilter.filter(passRow, 0);
+                    if (metrics != null) {
+                        metrics.filterTypes[filterMethod]++;
+                    }
+                    writer.write((byte) filterMethod);
+                    writer.write(passFilter.bestRow(), bytesPerPixel, bytesPerRow);
+                }
+            } finally {
+                passFilter.close();
+            }
+            writer.flush();
+        }
+    }
+
+    private int samplesPerRow() {
+        return format.width() * format.colorType().samples();
+    }
+
+    private void checkImageSize(int length, long expected) {
+        ensureOpen();
+        if (rowsWritten != 0) {
+            throw new IllegalStateException("Rows have already been written");
+        }
+        if (length != expected) {
+            throw new IllegalArgumentException("image has wrong size, expected " + expected + " but was " + length);
+        }
+    }
+
+    private void checkRows(int offset, int rowCount, int rowLength, int length) {
+        if (rowCount < 0 || rowCount > format.height() - rowsWritten) {
+            throw new IllegalArgumentException("rowCount must be between 0 and " + (format.height() - rowsWritten) + ", but was " + rowCount);
+        }
+        if (offset < 0 || (long) offset + (long) rowCount * rowLength > length) {
+            throw new IndexOutOfBoundsException("Not enough data for " + rowCount + " rows starting at offset " + offset);
+        }
+    }
+
+    private void ensureOpen() {
+        if (writer == null) {
+            throw new IllegalStateException("Image has already been written");
+        }
+    }
+
+    /**
+     * Produces the raw rows of an image, one band at a time
+     */
+    @FunctionalInterface
+    public interface BandProducer {
+        /**
+         * Fills the band with the given rows, in the same layout as {@link #writeRows(byte[], int, int)}
+         *
+         * @param firstRow The index of the first row in the band
+         * @param rowCount The number of rows to fill
+         * @param band     The array to fill, starting at offset 0, which is reused for every band
+         */
+        void produce(int firstRow, int rowCount, byte[] band);
     }
 }
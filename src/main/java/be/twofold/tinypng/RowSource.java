@@ -0,0 +1,98 @@
+package be.twofold.tinypng;
+
+import java.nio.*;
+
+/**
+ * Supplies rows of raw PNG sample data, converting them from their source layout on the fly.
+ * <p>
+ * Rows are copied straight into the filter's scratch buffer, so the image never has to be
+ * copied into a {@code byte[]} first. Implementations are safe to read from multiple threads.
+ */
+interface RowSource {
+
+    /**
+     * Copies a row into the destination, in the layout PNG expects
+     *
+     * @param row    The index of the row, relative to the first row of this source
+     * @param dst    The destination array
+     * @param offset The offset in the destination array
+     */
+    void copyRow(int row, byte[] dst, int offset);
+
+    static RowSource of(byte[] src, int offset, int stride, int bytesPerRow) {
+        return (row, dst, dstOffset) -> System.arraycopy(src, offset + row * stride, dst, dstOffset, bytesPerRow);
+    }
+
+    static RowSource of(ByteBuffer src, int bytesPerRow) {
+        ByteBuffer slice = src.slice();
+        return (row, dst, dstOffset) -> slice.duplicate()
+            .position(row * bytesPerRow)
+            .get(dst, dstOffset, bytesPerRow);
+    }
+
+    /**
+     * Reads packed ARGB pixels, writing them out as RGB or RGBA
+     */
+    static RowSource ofArgb(int[] src, int offset, int stride, int width, boolean alpha) {
+        if (alpha) {
+            return (row, dst, dstOffset) -> {
+                for (int i = offset + row * stride, o = dstOffset, end = i + width; i < end; i++, o += 4) {
+                    int argb = src[i];
+                    dst[o] = (byte) (argb >> 16);
+                    dst[o + 1] = (byte) (argb >> 8);
+                    dst[o + 2] = (byte) argb;
+                    dst[o + 3] = (byte) (argb >>> 24);
+                }
+            };
+        }
+        return (row, dst, dstOffset) -> {
+            for (int i = offset + row * stride, o = dstOffset, end = i + width; i < end; i++, o += 3) {
+                int argb = src[i];
+                dst[o] = (byte) (argb >> 16);
+                dst[o + 1] = (byte) (argb >> 8);
+                dst[o + 2] = (byte) argb;
+            }
+        };
+    }
+
+    /**
+     * Reads interleaved 8-bit samples, reordering them using the offset of each band within a pixel
+     */
+    static RowSource ofInterleaved(byte[] src, int offset, int stride, int width, int[] bandOffsets) {
+        int bands = bandOffsets.length;
+        int o0 = bandOffsets[0];
+        int o1 = bandOffsets[1];
+        int o2 = bandOffsets[2];
+        if (bands == 4) {
+            int o3 = bandOffsets[3];
+            return (row, dst, dstOffset) -> {
+                for (int i = offset + row * stride, o = dstOffset, end = o + width * 4; o < end; i += 4, o += 4) {
+                    dst[o] = src[i + o0];
+                    dst[o + 1] = src[i + o1];
+                    dst[o + 2] = src[i + o2];
+                    dst[o + 3] = src[i + o3];
+                }
+            };
+        }
+        return (row, dst, dstOffset) -> {
+            for (int i = offset + row * stride, o = dstOffset, end = o + width * 3; o < end; i += 3, o += 3) {
+                dst[o] = src[i + o0];
+                dst[o + 1] = src[i + o1];
+                dst[o + 2] = src[i + o2];
+            }
+        };
+    }
+
+    /**
+     * Reads 16-bit samples, writing them out in big endian order
+     */
+    static RowSource of(short[] src, int offset, int stride, int samplesPerRow) {
+        return (row, dst, dstOffset) -> {
+            for (int i = offset + row * stride, o = dstOffset, end = i + samplesPerRow; i < end; i++, o += 2) {
+                short sample = src[i];
+                dst[o] = (byte) (sample >> 8);
+                dst[o + 1] = (byte) sample;
+            }
+        };
+    }
+}
@@ -0,0 +1,282 @@
+package be.twofold.tinypng;
+
+/**
+ * The filter kernels in plain Java, which run on every JDK.
+ * <p>
+ * The kernels that look back one pixel are dispatched on the common pixel sizes,
+ * so the JIT can compile a copy of each loop with a constant offset.
+ */
+final class ScalarFilterKernels implements FilterKernels {
+    static final ScalarFilterKernels Instance = new ScalarFilterKernels();
+
+    private static final int BlockSize = 256;
+
+    private ScalarFilterKernels() {
+    }
+
+    @Override
+    public long sadNone(byte[] x, int start, int end, long limit) {
+        long sum = 0;
+        for (int i = start; i < end; ) {
+            int blockEnd = Math.min(i + BlockSize, end);
+            int blockSum = 0;
+            for (; i < blockEnd; i++) {
+                blockSum += Math.abs(x[i]);
+            }
+            sum += blockSum;
+            if (sum >= limit) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public long sadUp(byte[] x, byte[] b, int start, int end, long limit) {
+        long sum = 0;
+        for (int i = start; i < end; ) {
+            int blockEnd = Math.min(i + BlockSize, end);
+            int blockSum = 0;
+            for (; i < blockEnd; i++) {
+                blockSum += Math.abs((byte) (x[i] - b[i]));
+            }
+            sum += blockSum;
+            if (sum >= limit) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public long sadSub(byte[] x, int bpp, int end, long limit) {
+        switch (bpp) {
+            case 1:
+                return sadSubN(x, 1, end, limit);
+            case 2:
+                return sadSubN(x, 2, end, limit);
+            case 3:
+                return sadSubN(x, 3, end, limit);
+            case 4:
+                return sadSubN(x, 4, end, limit);
+            case 6:
+                return sadSubN(x, 6, end, limit);
+            case 8:
+                return sadSubN(x, 8, end, limit);
+            default:
+                return sadSubN(x, bpp, end, limit);
+        }
+    }
+
+    private static long sadSubN(byte[] x, int bpp, int end, long limit) {
+        long sum = 0;
+        for (int i = bpp; i < end; ) {
+            int blockEnd = Math.min(i + BlockSize, end);
+            int blockSum = 0;
+            for (; i < blockEnd; i++) {
+                blockSum += Math.abs((byte) (x[i] - x[i - bpp]));
+            }
+            sum += blockSum;
+            if (sum >= limit) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public long sadAverage(byte[] x, byte[] b, int bpp, int end, long limit) {
+        switch (bpp) {
+            case 1:
+                return sadAverageN(x, b, 1, end, limit);
+            case 2:
+                return sadAverageN(x, b, 2, end, limit);
+            case 3:
+                return sadAverageN(x, b, 3, end, limit);
+            case 4:
+                return sadAverageN(x, b, 4, end, limit);
+            case 6:
+                return sadAverageN(x, b, 6, end, limit);
+            case 8:
+                return sadAverageN(x, b, 8, end, limit);
+            default:
+                return sadAverageN(x, b, bpp, end, limit);
+        }
+    }
+
+    private static long sadAverageN(byte[] x, byte[] b, int bpp, int end, long limit) {
+        long sum = 0;
+        for (int i = bpp; i < end; ) {
+            int blockEnd = Math.min(i + BlockSize, end);
+            int blockSum = 0;
+            for (; i < blockEnd; i++) {
+                int average = Byte.toUnsignedInt(x[i - bpp]) + Byte.toUnsignedInt(b[i]) >> 1;
+                blockSum += Math.abs((byte) (x[i] - average));
+            }
+            sum += blockSum;
+            if (sum >= limit) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public long sadPaeth(byte[] x, byte[] b, byte[] out, int bpp, int end, long limit) {
+        switch (bpp) {
+            case 1:
+                return sadPaethN(x, b, out, 1, end, limit);
+            case 2:
+                return sadPaethN(x, b, out, 2, end, limit);
+            case 3:
+                return sadPaethN(x, b, out, 3, end, limit);
+            case 4:
+                return sadPaethN(x, b, out, 4, end, limit);
+            case 6:
+                return sadPaethN(x, b, out, 6, end, limit);
+            case 8:
+                return sadPaethN(x, b, out, 8, end, limit);
+            default:
+                return sadPaethN(x, b, out, bpp, end, limit);
+        }
+    }
+
+    private static long sadPaethN(byte[] x, byte[] b, byte[] out, int bpp, int end, long limit) {
+        long sum = 0;
+        for (int i = bpp; i < end; ) {
+            int blockEnd = Math.min(i + BlockSize, end);
+            int blockSum = 0;
+            for (; i < blockEnd; i++) {
+                int predictor = paeth(Byte.toUnsignedInt(x[i - bpp]), Byte.toUnsignedInt(b[i]), Byte.toUnsignedInt(b[i - bpp]));
+                byte residual = (byte) (x[i] - predictor);
+                out[i] = residual;
+                blockSum += Math.abs(residual);
+            }
+            sum += blockSum;
+            if (sum >= limit) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public void writeUp(byte[] x, byte[] b, byte[] out, int start, int end) {
+        for (int i = start; i < end; i++) {
+            out[i] = (byte) (x[i] - b[i]);
+        }
+    }
+
+    @Override
+    public void writeSub(byte[] x, byte[] out, int bpp, int end) {
+        switch (bpp) {
+            case 1:
+                writeSubN(x, out, 1, end);
+                break;
+            case 2:
+                writeSubN(x, out, 2, end);
+                break;
+            case 3:
+                writeSubN(x, out, 3, end);
+                break;
+            case 4:
+                writeSubN(x, out, 4, end);
+                break;
+            case 6:
+                writeSubN(x, out, 6, end);
+                break;
+            case 8:
+                writeSubN(x, out, 8, end);
+                break;
+            default:
+                writeSubN(x, out, bpp, end);
+                break;
+        }
+    }
+
+    private static void writeSubN(byte[] x, byte[] out, int bpp, int end) {
+        for (int i = bpp; i < end; i++) {
+            out[i] = (byte) (x[i] - x[i - bpp]);
+        }
+    }
+
+    @Override
+    public void writeAverage(byte[] x, byte[] b, byte[] out, int bpp, int end) {
+        switch (bpp) {
+            case 1:
+                writeAverageN(x, b, out, 1, end);
+                break;
+            case 2:
+                writeAverageN(x, b, out, 2, end);
+                break;
+            case 3:
+                writeAverageN(x, b, out, 3, end);
+                break;
+            case 4:
+                writeAverageN(x, b, out, 4, end);
+                break;
+            case 6:
+                writeAverageN(x, b, out, 6, end);
+                break;
+            case 8:
+                writeAverageN(x, b, out, 8, end);
+                break;
+            default:
+                writeAverageN(x, b, out, bpp, end);
+                break;
+        }
+    }
+
+    private static void writeAverageN(byte[] x, byte[] b, byte[] out, int bpp, int end) {
+        for (int i = bpp; i < end; i++) {
+            int average = Byte.toUnsignedInt(x[i - bpp]) + Byte.toUnsignedInt(b[i]) >> 1;
+            out[i] = (byte) (x[i] - average);
+        }
+    }
+
+    @Override
+    public void writePaeth(byte[] x, byte[] b, byte[] out, int bpp, int end) {
+        switch (bpp) {
+            case 1:
+                writePaethN(x, b, out, 1, end);
+                break;
+            case 2:
+                writePaethN(x, b, out, 2, end);
+                break;
+            case 3:
+                writePaethN(x, b, out, 3, end);
+                break;
+            case 4:
+                writePaethN(x, b, out, 4, end);
+                break;
+            case 6:
+                writePaethN(x, b, out, 6, end);
+                break;
+            case 8:
+                writePaethN(x, b, out, 8, end);
+                break;
+            default:
+                writePaethN(x, b, out, bpp, end);
+                break;
+        }
+    }
+
+    private static void writePaethN(byte[] x, byte[] b, byte[] out, int bpp, int end) {
+        for (int i = bpp; i < end; i++) {
+            int predictor = paeth(Byte.toUnsignedInt(x[i - bpp]), Byte.toUnsignedInt(b[i]), Byte.toUnsignedInt(b[i - bpp]));
+            out[i] = (byte) (x[i] - predictor);
+        }
+    }
+
+    static int paeth(int a, int b, int c) {
+        // Equivalent to the reference implementation, but written so the JIT can use conditional moves
+        int pa = Math.abs(b - c);
+        int pb = Math.abs(a - c);
+        int pc = Math.abs(a + b - c - c);
+        if (pb < pa) {
+            pa = pb;
+            a = b;
+        }
+        return pc < pa ? c : a;
+    }
+}
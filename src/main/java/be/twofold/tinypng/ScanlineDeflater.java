@@ -0,0 +1,781 @@
+package be.twofold.tinypng;
+
+import java.lang.invoke.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * A deflate encoder in plain Java, made for filtered image rows.
+ * <p>
+ * Filtered image data mostly repeats at a few fixed distances: runs of the same byte in flat regions,
+ * the previous pixel, and the same position in the previous row. Those distances are tried first,
+ * and a single hash lookup on top catches repeats elsewhere, like text. Matching is greedy, and every
+ * block is written with dynamic Huffman codes, fixed Huffman codes, or stored, whichever is the smallest.
+ * <p>
+ * The input is gathered in a window, and only compressed when the window is full, or on a flush.
+ * Nothing calls into native code, and all the state is reused when the compressor is reset.
+ */
+final class ScanlineDeflater implements Compressor {
+    static final int WindowSize = 32 * 1024;
+    private static final int InputSize = 64 * 1024;
+    static final int MinMatch = 3;
+    static final int MaxMatch = 258;
+    private static final int TooFar = 4096;
+    private static final int HashBits = 15;
+    private static final int MaxSymbols = 16 * 1024;
+    private static final int MaxStoredSize = 65535;
+    static final int EndOfBlock = 256;
+    static final int LiteralCodes = 286;
+    static final int DistanceCodes = 30;
+    private static final int CodeLengthCodes = 19;
+
+    private static final VarHandle Ints = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final int[] CodeLengthOrder = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+    private static final int[] CodeLengthExtra = {2, 3, 7};
+    static final int[] LengthBase = {
+        3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258
+    };
+    static final int[] LengthExtra = {
+        0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0
+    };
+    static final byte[] LengthCode = new byte[MaxMatch + 1];
+    private static final Huffman FixedLiterals = new Huffman(288, 15);
+    private static final Huffman FixedDistances = new Huffman(DistanceCodes, 15);
+
+    static {
+        for (int code = 0; code < LengthBase.length; code++) {
+            int end = Math.min(LengthBase[code] + (1 << LengthExtra[code]), MaxMatch + 1);
+            Arrays.fill(LengthCode, LengthBase[code], end, (byte) code);
+        }
+
+        int[] lengths = new int[288];
+        Arrays.fill(lengths, 0, 144, 8);
+        Arrays.fill(lengths, 144, 256, 9);
+        Arrays.fill(lengths, 256, 280, 7);
+        Arrays.fill(lengths, 280, 288, 8);
+        FixedLiterals.assign(lengths);
+        Arrays.fill(lengths, 0, DistanceCodes, 5);
+        FixedDistances.assign(lengths);
+    }
+
+    private final byte[] window = new byte[WindowSize + InputSize];
+    private final int[] head = new int[1 << HashBits];
+    private final int[] symbols = new int[MaxSymbols];
+    private final int[] literalFrequencies = new int[LiteralCodes];
+    private final int[] distanceFrequencies = new int[DistanceCodes];
+    private final Huffman literals = new Huffman(LiteralCodes, 15);
+    private final Huffman distances = new Huffman(DistanceCodes, 15);
+    private final DynamicHeader header = new DynamicHeader();
+    private final BitSink sink = this::writeBits;
+
+    private int bytesPerPixel;
+    private int bytesPerRow;
+    private byte[] input;
+    private int inputOffset;
+    private int inputEnd;
+    private int end;
+    private int position;
+    private int blockStart;
+    private int symbolCount;
+
+    private byte[] output = new byte[InputSize + InputSize / 4];
+    private int outputStart;
+    private int outputEnd;
+    private long bits;
+    private int bitCount;
+
+    private int adlerA;
+    private int adlerB;
+    private boolean headerWritten;
+    private boolean dirty;
+    private boolean finishing;
+    private boolean finished;
+
+    @Override
+    public void setInput(byte[] input, int offset, int length) {
+        this.input = input;
+        this.inputOffset = offset;
+        this.inputEnd = offset + length;
+    }
+
+    @Override
+    public boolean needsInput() {
+        return inputOffset == inputEnd;
+    }
+
+    @Override
+    public int deflate(byte[] output, int offset, int length) {
+        while (outputStart == outputEnd && step()) {
+            // Keep going until there is output, or nothing is left to do
+        }
+        return drain(output, offset, length);
+    }
+
+    @Override
+    public int flush(byte[] output, int offset, int length) {
+        while (step()) {
+            // Take in all the input first
+        }
+        if (dirty) {
+            compress(end);
+            writeBlock(false);
+            writeBits(0, 3);
+            alignToByte();
+            putShort(0);
+            putShort(0xffff);
+            dirty = false;
+        }
+        return drain(output, offset, length);
+    }
+
+    @Override
+    public void finish() {
+        finishing = true;
+    }
+
+    @Override
+    public boolean finished() {
+        return finished && outputStart == outputEnd;
+    }
+
+    /**
+     * Starts a new stream, looking for matches at the pixel and row distances of the format
+     */
+    @Override
+    public void reset(PngFormat format) {
+        bytesPerPixel = format.bytesPerPixel();
+        bytesPerRow = format.bytesPerRow() + 1;
+        Arrays.fill(head, -1);
+        Arrays.fill(literalFrequencies, 0);
+        Arrays.fill(distanceFrequencies, 0);
+        input = null;
+        inputOffset = 0;
+        inputEnd = 0;
+        end = 0;
+        position = 0;
+        blockStart = 0;
+        symbolCount = 0;
+        outputStart = 0;
+        outputEnd = 0;
+        bits = 0;
+        bitCount = 0;
+        adlerA = 1;
+        adlerB = 0;
+        headerWritten = false;
+        dirty = false;
+        finishing = false;
+        finished = false;
+    }
+
+    @Override
+    public void end() {
+    }
+
+    /**
+     * Does the next bit of work, and returns false if there was none
+     */
+    private boolean step() {
+        if (!headerWritten) {
+            putByte(0x78);
+            putByte(0x01);
+            headerWritten = true;
+            return true;
+        }
+
+        if (inputOffset < inputEnd) {
+            if (end == window.length) {
+                compress(end - MaxMatch);
+                writeBlock(false);
+                slide();
+            }
+            int count = Math.min(inputEnd - inputOffset, window.length - end);
+            System.arraycopy(input, inputOffset, window, end, count);
+            updateAdler(input, inputOffset, count);
+            inputOffset += count;
+            end += count;
+            dirty = true;
+            return true;
+        }
+
+        if (finishing && !finished) {
+            compress(end);
+            writeBlock(true);
+            alignToByte();
+            putByte(adlerB >>> 8);
+            putByte(adlerB);
+            putByte(adlerA >>> 8);
+            putByte(adlerA);
+            finished = true;
+            return true;
+        }
+        return false;
+    }
+
+    private int drain(byte[] output, int offset, int length) {
+        int count = Math.min(length, outputEnd - outputStart);
+        System.arraycopy(this.output, outputStart, output, offset, count);
+        outputStart += count;
+        if (outputStart == outputEnd) {
+            outputStart = 0;
+            outputEnd = 0;
+        }
+        return count;
+    }
+
+    /**
+     * Keeps the last 32K before the current position as the history for the next input
+     */
+    private void slide() {
+        int shift = position - WindowSize;
+        if (shift <= 0) {
+            return;
+        }
+        System.arraycopy(window, shift, window, 0, end - shift);
+        end -= shift;
+        position -= shift;
+        blockStart = position;
+        for (int i = 0; i < head.length; i++) {
+            int value = head[i] - shift;
+            head[i] = value < 0 ? -1 : value;
+        }
+    }
+
+    // region Matching
+
+    /**
+     * Turns the window up to the limit into literals and matches. A match can run past the limit.
+     */
+    private void compress(int limit) {
+        byte[] window = this.window;
+        int bytesPerPixel = this.bytesPerPixel;
+        int bytesPerRow = this.bytesPerRow;
+        int end = this.end;
+        int p = position;
+        while (p < limit) {
+            int maxLength = Math.min(MaxMatch, end - p);
+            int bestLength = 0;
+            int bestDistance = 0;
+
+            // Matches are only looked for with 4 bytes left, so the first ones can be read as an int
+            if (maxLength >= 4) {
+                int current = (int) Ints.get(window, p);
+
+                // Runs in flat areas, then the previous pixel, then the previous row
+                if (p >= 1) {
+                    bestLength = matchLength(p, 1, maxLength, 0, current);
+                    bestDistance = 1;
+                }
+                if (bestLength < maxLength && bytesPerPixel > 1 && p >= bytesPerPixel) {
+                    int length = matchLength(p, bytesPerPixel, maxLength, bestLength, current);
+                    if (length > bestLength) {
+                        bestLength = length;
+                        bestDistance = bytesPerPixel;
+                    }
+                }
+                if (bestLength < maxLength && bytesPerRow <= WindowSize && p >= bytesPerRow) {
+                    int length = matchLength(p, bytesPerRow, maxLength, bestLength, current);
+                    if (length > bestLength) {
+                        bestLength = length;
+                        bestDistance = bytesPerRow;
+                    }
+                }
+
+                int hash = (current * 0x9e3779b1) >>> (32 - HashBits);
+                int candidate = head[hash];
+                head[hash] = p;
+                int distance = p - candidate;
+                if (bestLength < maxLength && candidate >= 0 && distance <= WindowSize) {
+                    int length = matchLength(p, distance, maxLength, bestLength, current);
+                    if (length > bestLength && (length > MinMatch || distance <= TooFar)) {
+                        bestLength = length;
+                        bestDistance = distance;
+                    }
+                }
+            }
+
+            if (bestLength >= MinMatch) {
+                symbols[symbolCount++] = bestLength << 16 | bestDistance;
+                literalFrequencies[257 + LengthCode[bestLength]]++;
+                distanceFrequencies[distanceCode(bestDistance)]++;
+                p += bestLength;
+            } else {
+                int literal = window[p] & 0xff;
+                symbols[symbolCount++] = literal;
+                literalFrequencies[literal]++;
+                p++;
+            }
+
+            if (symbolCount == MaxSymbols) {
+                position = p;
+                writeBlock(false);
+            }
+        }
+        position = p;
+    }
+
+    /**
+     * Returns the length of the match at the given distance, or 0 if it is too short or can't beat the best one.
+     * The cheap checks come first, as most positions in noisy data have no match at all.
+     *
+     * @param current The first four bytes at the position
+     */
+    private int matchLength(int p, int distance, int maxLength, int bestLength, int current) {
+        byte[] window = this.window;
+        int q = p - distance;
+        if (window[q + bestLength] != window[p + bestLength]
+            || (((int) Ints.get(window, q) ^ current) & 0xffffff) != 0) {
+            return 0;
+        }
+        int mismatch = Arrays.mismatch(window, q + MinMatch, q + maxLength, window, p + MinMatch, p + maxLength);
+        return mismatch < 0 ? maxLength : mismatch + MinMatch;
+    }
+
+    static int distanceCode(int distance) {
+        int value = distance - 1;
+        if (value < 4) {
+            return value;
+        }
+        int bits = 31 - Integer.numberOfLeadingZeros(value);
+        return 2 * bits + ((value >>> (bits - 1)) & 1);
+    }
+
+    // endregion
+
+    // region Blocks
+
+    /**
+     * Writes the symbols since the start of the block, as whichever block type comes out smallest
+     */
+    private void writeBlock(boolean last) {
+        int rawLength = position - blockStart;
+        if (symbolCount == 0 && !last) {
+            return;
+        }
+
+        literalFrequencies[EndOfBlock] = 1;
+        literals.build(literalFrequencies, LiteralCodes);
+        distances.build(distanceFrequencies, DistanceCodes);
+        header.build(literals.lengths, distances.lengths);
+
+        long extraBits = 0;
+        long dynamicBits = 3 + header.bitCount();
+        long fixedBits = 3;
+        for (int i = 0; i < LiteralCodes; i++) {
+            int frequency = literalFrequencies[i];
+            dynamicBits += (long) frequency * literals.lengths[i];
+            fixedBits += (long) frequency * FixedLiterals.lengths[i];
+            if (i > 256) {
+                extraBits += (long) frequency * LengthExtra[i - 257];
+            }
+        }
+        for (int i = 0; i < DistanceCodes; i++) {
+            int frequency = distanceFrequencies[i];
+            dynamicBits += (long) frequency * distances.lengths[i];
+            fixedBits += frequency * 5L;
+            extraBits += (long) frequency * Math.max(0, i / 2 - 1);
+        }
+        dynamicBits += extraBits;
+        fixedBits += extraBits;
+        long storedBits = 8L * (rawLength + 5L * Math.max(1, (rawLength + MaxStoredSize - 1) / MaxStoredSize)) + 10;
+
+        if (storedBits < dynamicBits && storedBits < fixedBits) {
+            writeStored(last, rawLength);
+        } else if (fixedBits <= dynamicBits) {
+            writeBits(last ? 3 : 2, 3);
+            writeSymbols(FixedLiterals, FixedDistances);
+        } else {
+            writeBits(last ? 5 : 4, 3);
+            header.write(sink);
+            writeSymbols(literals, distances);
+        }
+
+        Arrays.fill(literalFrequencies, 0);
+        Arrays.fill(distanceFrequencies, 0);
+        symbolCount = 0;
+        blockStart = position;
+    }
+
+    private void writeSymbols(Huffman literals, Huffman distances) {
+        int[] literalCodes = literals.codes;
+        int[] literalLengths = literals.lengths;
+        int[] distanceCodes = distances.codes;
+        int[] distanceLengths = distances.lengths;
+        for (int i = 0; i < symbolCount; i++) {
+            int symbol = symbols[i];
+            if (symbol < 256) {
+                writeBits(literalCodes[symbol], literalLengths[symbol]);
+                continue;
+            }
+
+            int length = symbol >>> 16;
+            int lengthCode = LengthCode[length];
+            writeBits(literalCodes[257 + lengthCode], literalLengths[257 + lengthCode]);
+            writeBits(length - LengthBase[lengthCode], LengthExtra[lengthCode]);
+
+            int distance = symbol & 0xffff;
+            int distanceCode = distanceCode(distance);
+            writeBits(distanceCodes[distanceCode], distanceLengths[distanceCode]);
+            int extra = Math.max(0, distanceCode / 2 - 1);
+            writeBits((distance - 1) & ((1 << extra) - 1), extra);
+        }
+        writeBits(literalCodes[EndOfBlock], literalLengths[EndOfBlock]);
+    }
+
+    private void writeStored(boolean last, int rawLength) {
+        int offset = blockStart;
+        do {
+            int count = Math.min(rawLength, MaxStoredSize);
+            rawLength -= count;
+            writeBits(last && rawLength == 0 ? 1 : 0, 3);
+            alignToByte();
+            putShort(count);
+            putShort(~count & 0xffff);
+            ensureCapacity(count);
+            System.arraycopy(window, offset, output, outputEnd, count);
+            outputEnd += count;
+            offset += count;
+        } while (rawLength > 0);
+    }
+
+    // endregion
+
+    // region Output
+
+    private void writeBits(int value, int count) {
+        bits |= (long) value << bitCount;
+        bitCount += count;
+        if (bitCount >= 32) {
+            ensureCapacity(4);
+            byte[] output = this.output;
+            int o = outputEnd;
+            output[o] = (byte) bits;
+            output[o + 1] = (byte) (bits >>> 8);
+            output[o + 2] = (byte) (bits >>> 16);
+            output[o + 3] = (byte) (bits >>> 24);
+            outputEnd = o + 4;
+            bits >>>= 32;
+            bitCount -= 32;
+        }
+    }
+
+    private void alignToByte() {
+        while (bitCount > 0) {
+            ensureCapacity(1);
+            output[outputEnd++] = (byte) bits;
+            bits >>>= 8;
+            bitCount -= Math.min(bitCount, 8);
+        }
+        bits = 0;
+    }
+
+    private void putByte(int value) {
+        ensureCapacity(1);
+        output[outputEnd++] = (byte) value;
+    }
+
+    private void putShort(int value) {
+        putByte(value);
+        putByte(value >>> 8);
+    }
+
+    private void ensureCapacity(int count) {
+        if (outputEnd + count > output.length) {
+            output = Arrays.copyOf(output, Math.max(output.length * 2, outputEnd + count));
+        }
+    }
+
+    private void updateAdler(byte[] bytes, int offset, int length) {
+        int a = adlerA;
+        int b = adlerB;
+        while (length > 0) {
+            // The largest count for which the sums fit in 32 unsigned bits before the modulo
+            int count = Math.min(length, 5552);
+            length -= count;
+            for (int end = offset + count; offset < end; offset++) {
+                a += bytes[offset] & 0xff;
+                b += a;
+            }
+            a %= 65521;
+            b = Integer.remainderUnsigned(b, 65521);
+        }
+        adlerA = a;
+        adlerB = b;
+    }
+
+    // endregion
+
+    /**
+     * Receives the bits of a block, in the order deflate writes them
+     */
+    interface BitSink {
+        void writeBits(int value, int count);
+    }
+
+    /**
+     * The header of a block with dynamic Huffman codes, after the three bits that start the block.
+     * The code lengths of both codes are run-length encoded, and written with a code of their own.
+     */
+    static final class DynamicHeader {
+        private final int[] codeLengths = new int[LiteralCodes + DistanceCodes];
+        private final int[] codeLengthSymbols = new int[LiteralCodes + DistanceCodes];
+        private final int[] codeLengthFrequencies = new int[CodeLengthCodes];
+        private final Huffman codeLengthCode = new Huffman(CodeLengthCodes, 7);
+        private int literalCount;
+        private int distanceCount;
+        private int codeLengthCount;
+        private int codeLengthOrderCount;
+
+        /**
+         * Prepares the header for the given code lengths, which stay in use until it is written
+         */
+        void build(int[] literalLengths, int[] distanceLengths) {
+            literalCount = trim(literalLengths, LiteralCodes, 257);
+            distanceCount = trim(distanceLengths, DistanceCodes, 1);
+            codeLengthCount = buildCodeLengths(literalLengths, distanceLengths);
+            codeLengthOrderCount = CodeLengthCodes;
+            while (codeLengthOrderCount > 4 && codeLengthCode.lengths[CodeLengthOrder[codeLengthOrderCount - 1]] == 0) {
+                codeLengthOrderCount--;
+            }
+        }
+
+        /**
+         * Returns the size of the header in bits
+         */
+        long bitCount() {
+            long bits = 5 + 5 + 4 + 3L * codeLengthOrderCount;
+            for (int i = 0; i < codeLengthCount; i++) {
+                int symbol = codeLengthSymbols[i] & 0xff;
+                bits += codeLengthCode.lengths[symbol] + (symbol >= 16 ? CodeLengthExtra[symbol - 16] : 0);
+            }
+            return bits;
+        }
+
+        void write(BitSink sink) {
+            sink.writeBits(literalCount - 257, 5);
+            sink.writeBits(distanceCount - 1, 5);
+            sink.writeBits(codeLengthOrderCount - 4, 4);
+            for (int i = 0; i < codeLengthOrderCount; i++) {
+                sink.writeBits(codeLengthCode.lengths[CodeLengthOrder[i]], 3);
+            }
+            for (int i = 0; i < codeLengthCount; i++) {
+                int symbol = codeLengthSymbols[i] & 0xff;
+                sink.writeBits(codeLengthCode.codes[symbol], codeLengthCode.lengths[symbol]);
+                if (symbol >= 16) {
+                    sink.writeBits(codeLengthSymbols[i] >>> 8, CodeLengthExtra[symbol - 16]);
+                }
+            }
+        }
+
+        /**
+         * Run-length encodes the code lengths of both codes, and builds the code for them.
+         * Every entry holds the symbol in the low byte, and the value of its extra bits above it.
+         */
+        private int buildCodeLengths(int[] literalLengths, int[] distanceLengths) {
+            System.arraycopy(literalLengths, 0, codeLengths, 0, literalCount);
+            System.arraycopy(distanceLengths, 0, codeLengths, literalCount, distanceCount);
+            Arrays.fill(codeLengthFrequencies, 0);
+
+            int total = literalCount + distanceCount;
+            int count = 0;
+            for (int i = 0; i < total; ) {
+                int length = codeLengths[i];
+                int run = 1;
+                while (i + run < total && codeLengths[i + run] == length) {
+                    run++;
+                }
+                i += run;
+
+                if (length == 0) {
+                    for (; run >= 11; run -= Math.min(run, 138)) {
+                        codeLengthSymbols[count++] = 18 | (Math.min(run, 138) - 11) << 8;
+                        codeLengthFrequencies[18]++;
+                    }
+                    if (run >= 3) {
+                        codeLengthSymbols[count++] = 17 | (run - 3) << 8;
+                        codeLengthFrequencies[17]++;
+                        run = 0;
+                    }
+                } else {
+                    codeLengthSymbols[count++] = length;
+                    codeLengthFrequencies[length]++;
+                    run--;
+                    for (; run >= 3; run -= Math.min(run, 6)) {
+                        codeLengthSymbols[count++] = 16 | (Math.min(run, 6) - 3) << 8;
+                        codeLengthFrequencies[16]++;
+                    }
+                }
+                for (; run > 0; run--) {
+                    codeLengthSymbols[count++] = length;
+                    codeLengthFrequencies[length]++;
+                }
+            }
+
+            codeLengthCode.build(codeLengthFrequencies, CodeLengthCodes);
+            return count;
+        }
+
+        private static int trim(int[] lengths, int count, int minimum) {
+            while (count > minimum && lengths[count - 1] == 0) {
+                count--;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * A length-limited canonical Huffman code, with the codes bit-reversed, as deflate writes them
+     */
+    static final class Huffman {
+        private final int maxLength;
+        final int[] lengths;
+        final int[] codes;
+        private final int[] sorted;
+        private final int[] weights;
+        private final int[] lengthCounts = new int[16];
+        private final int[] next = new int[16];
+
+        Huffman(int size, int maxLength) {
+            this.maxLength = maxLength;
+            this.lengths = new int[size];
+            this.codes = new int[size];
+            this.sorted = new int[size];
+            this.weights = new int[size];
+        }
+
+        void build(int[] frequencies, int count) {
+            int used = 0;
+            for (int i = 0; i < count; i++) {
+                if (frequencies[i] != 0) {
+                    sorted[used++] = frequencies[i] << 16 | i;
+                }
+            }
+            // A code needs two symbols, decoders don't accept a single code of length 1 everywhere
+            for (int i = 0; used < 2; i++) {
+                if (frequencies[i] == 0) {
+                    sorted[used++] = 1 << 16 | i;
+                }
+            }
+            Arrays.sort(sorted, 0, used);
+
+            for (int i = 0; i < used; i++) {
+                weights[i] = sorted[i] >>> 16;
+            }
+            minimumRedundancy(weights, used);
+
+            Arrays.fill(lengthCounts, 0);
+            for (int i = 0; i < used; i++) {
+                lengthCounts[Math.min(weights[i], maxLength)]++;
+            }
+            limitLengths();
+
+            Arrays.fill(lengths, 0);
+            for (int length = 1, j = used; length <= maxLength; length++) {
+                for (int k = lengthCounts[length]; k > 0; k--) {
+                    lengths[sorted[--j] & 0xffff] = length;
+                }
+            }
+            assign(lengths);
+        }
+
+        /**
+         * Clamping lengths to the maximum oversubscribes the code, so codes are moved
+         * down a level until the Kraft sum is exactly one again
+         */
+        private void limitLengths() {
+            int total = 0;
+            for (int i = maxLength; i > 0; i--) {
+                total += lengthCounts[i] << (maxLength - i);
+            }
+            while (total != 1 << maxLength) {
+                lengthCounts[maxLength]--;
+                for (int i = maxLength - 1; i > 0; i--) {
+                    if (lengthCounts[i] != 0) {
+                        lengthCounts[i]--;
+                        lengthCounts[i + 1] += 2;
+                        break;
+                    }
+                }
+                total--;
+            }
+        }
+
+        /**
+         * Computes the canonical codes for the given lengths
+         */
+        void assign(int[] lengths) {
+            if (lengths != this.lengths) {
+                System.arraycopy(lengths, 0, this.lengths, 0, this.lengths.length);
+            }
+            int[] counts = lengthCounts;
+            Arrays.fill(counts, 0);
+            for (int length : this.lengths) {
+                counts[length]++;
+            }
+            counts[0] = 0;
+            for (int length = 1, code = 0; length < 16; length++) {
+                code = (code + counts[length - 1]) << 1;
+                next[length] = code;
+            }
+            for (int i = 0; i < this.lengths.length; i++) {
+                int length = this.lengths[i];
+                if (length != 0) {
+                    codes[i] = Integer.reverse(next[length]++) >>> (32 - length);
+                }
+            }
+        }
+
+        /**
+         * Moffat and Katajainen's in-place computation of Huffman code lengths.
+         * The weights must be sorted ascending, and are replaced by the code lengths.
+         */
+        private static void minimumRedundancy(int[] a, int n) {
+            if (n == 1) {
+                a[0] = 1;
+                return;
+            }
+
+            a[0] += a[1];
+            int root = 0;
+            int leaf = 2;
+            for (int next = 1; next < n - 1; next++) {
+                if (leaf >= n || a[root] < a[leaf]) {
+                    a[next] = a[root];
+                    a[root++] = next;
+                } else {
+                    a[next] = a[leaf++];
+                }
+                if (leaf >= n || (root < next && a[root] < a[leaf])) {
+                    a[next] += a[root];
+                    a[root++] = next;
+                } else {
+                    a[next] += a[leaf++];
+                }
+            }
+
+            a[n - 2] = 0;
+            for (int next = n - 3; next >= 0; next--) {
+                a[next] = a[a[next]] + 1;
+            }
+
+            int available = 1;
+            int used = 0;
+            int depth = 0;
+            root = n - 2;
+            int next = n - 1;
+            while (available > 0) {
+                while (root >= 0 && a[root] == depth) {
+                    used++;
+                    root--;
+                }
+                while (available > used) {
+                    a[next--] = depth;
+                    available--;
+                }
+                available = 2 * used;
+                depth++;
+                used = 0;
+            }
+        }
+    }
+}
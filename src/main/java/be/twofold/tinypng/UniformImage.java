@@ -0,0 +1,318 @@
+package be.twofold.tinypng;
+
+import java.util.*;
+
+/**
+ * Builds the zlib stream of an image in which every row is the same, without running deflate over all the rows.
+ * <p>
+ * Only the first two rows get filtered and compressed, because every row after the second one filters
+ * to the same bytes. Those rows go in a single block with dynamic Huffman codes that is written directly.
+ * Within a row, runs of the same byte become matches one byte back, or the rows become one long chain of
+ * matches that copy the row before, whichever is smaller. Both only look at a single row to build the codes.
+ * The Adler-32 of the repeated rows is worked out from two sums over a single row, so the work grows with
+ * the size of the output, instead of the size of the image.
+ * <p>
+ * The block header and the length and distance codes are shared with {@link ScanlineDeflater}.
+ */
+final class UniformImage {
+    private static final int MinMatch = ScanlineDeflater.MinMatch;
+    private static final int MaxMatch = ScanlineDeflater.MaxMatch;
+    private static final int EndOfBlock = ScanlineDeflater.EndOfBlock;
+    private static final int LiteralCodes = ScanlineDeflater.LiteralCodes;
+    private static final int DistanceCodes = ScanlineDeflater.DistanceCodes;
+    private static final int MaxFrequency = 0x7fff;
+    private static final int Base = 65521;
+
+    private final Codes runCodes = new Codes();
+    private final Codes copyCodes = new Codes();
+    private final ScanlineDeflater.DynamicHeader header = new ScanlineDeflater.DynamicHeader();
+    private final int[] literalFrequencies = new int[LiteralCodes];
+    private final int[] distanceFrequencies = new int[DistanceCodes];
+    private Codes codes;
+    private boolean counting;
+    private long extraBits;
+    private int last;
+
+    private byte[] output = new byte[4096];
+    private int outputLength;
+    private long bits;
+    private int bitCount;
+
+    private UniformImage() {
+    }
+
+    /**
+     * Returns whether every row of the image is the same as the first one
+     */
+    static boolean isUniform(byte[] image, int bytesPerRow) {
+        for (int offset = bytesPerRow; offset < image.length; offset += bytesPerRow) {
+            if (!Arrays.equals(image, 0, bytesPerRow, image, offset, offset + bytesPerRow)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the complete zlib stream for the filtered rows
+     *
+     * @param compressor The compressor for the first two rows, which is left unfinished
+     * @param first      The first row after filtering, starting with its filter type
+     * @param repeated   Every row after the first one after filtering, starting with its filter type
+     * @param rowCount   The number of rows, including the first one, at least 2
+     */
+    static byte[] deflate(Compressor compressor, byte[] first, byte[] repeated, int rowCount) {
+        UniformImage stream = new UniformImage();
+        stream.compress(compressor, first);
+        stream.compress(compressor, repeated);
+        stream.flush(compressor);
+        stream.writeRepeated(repeated, rowCount - 2);
+
+        int adler = adler32(first, repeated, rowCount);
+        stream.writeBits(adler >>> 24, 8);
+        stream.writeBits(adler >>> 16 & 0xff, 8);
+        stream.writeBits(adler >>> 8 & 0xff, 8);
+        stream.writeBits(adler & 0xff, 8);
+        return Arrays.copyOf(stream.output, stream.outputLength);
+    }
+
+    private void compress(Compressor compressor, byte[] row) {
+        compressor.setInput(row, 0, row.length);
+        while (!compressor.needsInput()) {
+            ensureCapacity();
+            outputLength += compressor.deflate(output, outputLength, output.length - outputLength);
+        }
+    }
+
+    private void flush(Compressor compressor) {
+        int space;
+        int count;
+        do {
+            ensureCapacity();
+            space = output.length - outputLength;
+            count = compressor.flush(output, outputLength, space);
+            outputLength += count;
+        } while (count == space);
+    }
+
+    private void writeRepeated(byte[] row, int rowCount) {
+        if (rowCount == 0) {
+            // A final block with fixed codes, holding only the end of block
+            writeBits(3, 3);
+            writeBits(0, 7);
+            writeBits(0, 8 - bitCount);
+            return;
+        }
+
+        Runnable runs = () -> {
+            for (int i = 0; i < rowCount; i++) {
+                writeRuns(row);
+            }
+        };
+        long runBits = plan(runCodes, () -> writeRuns(row), rowCount, row);
+
+        // A copy of a whole row can only reach as far back as the window
+        long copies = (long) rowCount * row.length;
+        Runnable copy = () -> writeCopies(row, copies);
+        if (row.length <= ScanlineDeflater.WindowSize && plan(copyCodes, copy, 1, row) < runBits) {
+            writeBlock(copyCodes, copy, row);
+        } else {
+            writeBlock(runCodes, runs, row);
+        }
+    }
+
+    /**
+     * Counts the symbols, builds the codes for them, and returns the number of bits the symbols take
+     *
+     * @param codes   The codes to build
+     * @param symbols The symbols to count
+     * @param repeat  The number of times the counted symbols are written
+     * @param row     The repeated row
+     */
+    private long plan(Codes codes, Runnable symbols, long repeat, byte[] row) {
+        Arrays.fill(literalFrequencies, 0);
+        Arrays.fill(distanceFrequencies, 0);
+        extraBits = 0;
+        last = row[row.length - 1] & 0xff;
+        counting = true;
+        symbols.run();
+        literalFrequencies[EndOfBlock] = 1;
+
+        codes.literals.build(scale(literalFrequencies), LiteralCodes);
+        codes.distances.build(scale(distanceFrequencies), DistanceCodes);
+        long total = extraBits;
+        for (int i = 0; i < LiteralCodes; i++) {
+            total += (long) literalFrequencies[i] * codes.literals.lengths[i];
+        }
+        for (int i = 0; i < DistanceCodes; i++) {
+            total += (long) distanceFrequencies[i] * codes.distances.lengths[i];
+        }
+        return total * repeat;
+    }
+
+    /**
+     * The Huffman code only needs the frequencies relative to each other, but they have to fit in 15 bits
+     */
+    private static int[] scale(int[] frequencies) {
+        int max = Arrays.stream(frequencies).max().orElse(0);
+        if (max <= MaxFrequency) {
+            return frequencies;
+        }
+        int[] result = new int[frequencies.length];
+        for (int i = 0; i < frequencies.length; i++) {
+            if (frequencies[i] != 0) {
+                result[i] = (int) Math.max(1, (long) frequencies[i] * MaxFrequency / max);
+            }
+        }
+        return result;
+    }
+
+    private void writeBlock(Codes codes, Runnable symbols, byte[] row) {
+        header.build(codes.literals.lengths, codes.distances.lengths);
+        writeBits(5, 3);
+        header.write(this::writeBits);
+
+        this.codes = codes;
+        last = row[row.length - 1] & 0xff;
+        counting = false;
+        symbols.run();
+        writeSymbol(EndOfBlock);
+        if (bitCount > 0) {
+            writeBits(0, 8 - bitCount);
+        }
+    }
+
+    private void writeRuns(byte[] row) {
+        for (int i = 0; i < row.length; ) {
+            int value = row[i] & 0xff;
+            int end = i + 1;
+            while (end < row.length && row[end] == row[i]) {
+                end++;
+            }
+            writeRun(value, end - i);
+            i = end;
+        }
+    }
+
+    private void writeRun(int value, int count) {
+        if (value != last || count < MinMatch) {
+            writeSymbol(value);
+            last = value;
+            count--;
+        }
+        while (count >= MinMatch) {
+            int length = Math.min(count, MaxMatch);
+            if (count - length > 0 && count - length < MinMatch) {
+                length -= MinMatch;
+            }
+            writeMatch(length, 1);
+            count -= length;
+        }
+        for (; count > 0; count--) {
+            writeSymbol(value);
+        }
+    }
+
+    private void writeCopies(byte[] row, long count) {
+        long copied = 0;
+        while (count - copied >= MinMatch) {
+            long left = count - copied;
+            int length = (int) Math.min(left, MaxMatch);
+            if (left - length > 0 && left - length < MinMatch) {
+                length -= MinMatch;
+            }
+            writeMatch(length, row.length);
+            copied += length;
+        }
+        for (; copied < count; copied++) {
+            writeSymbol(row[(int) (copied % row.length)] & 0xff);
+        }
+    }
+
+    private void writeMatch(int length, int distance) {
+        int lengthCode = ScanlineDeflater.LengthCode[length];
+        writeSymbol(257 + lengthCode);
+        writeExtra(length - ScanlineDeflater.LengthBase[lengthCode], ScanlineDeflater.LengthExtra[lengthCode]);
+
+        int distanceCode = ScanlineDeflater.distanceCode(distance);
+        int extra = Math.max(0, distanceCode / 2 - 1);
+        writeDistance(distanceCode);
+        writeExtra((distance - 1) & ((1 << extra) - 1), extra);
+    }
+
+    private void writeSymbol(int symbol) {
+        if (counting) {
+            literalFrequencies[symbol]++;
+        } else {
+            writeBits(codes.literals.codes[symbol], codes.literals.lengths[symbol]);
+        }
+    }
+
+    private void writeDistance(int code) {
+        if (counting) {
+            distanceFrequencies[code]++;
+        } else {
+            writeBits(codes.distances.codes[code], codes.distances.lengths[code]);
+        }
+    }
+
+    private void writeExtra(int value, int count) {
+        if (counting) {
+            extraBits += count;
+        } else {
+            writeBits(value, count);
+        }
+    }
+
+    private void writeBits(int value, int count) {
+        bits |= (long) value << bitCount;
+        bitCount += count;
+        while (bitCount >= 8) {
+            if (outputLength == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            output[outputLength++] = (byte) bits;
+            bits >>>= 8;
+            bitCount -= 8;
+        }
+    }
+
+    private void ensureCapacity() {
+        if (output.length - outputLength < 1024) {
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+    }
+
+    private static int adler32(byte[] first, byte[] repeated, int rowCount) {
+        long a = 1;
+        long b = 0;
+        for (byte value : first) {
+            a = (a + (value & 0xff)) % Base;
+            b = (b + a) % Base;
+        }
+
+        // Adding n bytes x[i] adds their sum to a, and n times the old a plus the sum of (n - i) * x[i] to b.
+        // Over k rows, a grows by k * sum, and b by k * (n * a + weighted) plus n * sum * k * (k - 1) / 2.
+        int n = repeated.length;
+        long sum = 0;
+        long weighted = 0;
+        for (int i = 0; i < n; i++) {
+            sum = (sum + (repeated[i] & 0xff)) % Base;
+            weighted = (weighted + (long) (n - i) * (repeated[i] & 0xff)) % Base;
+        }
+        long k = rowCount - 1;
+        long pairs = k * (k - 1) / 2 % Base;
+        k %= Base;
+        b = (b + k * ((n % Base * a + weighted) % Base) + n % Base * sum % Base * pairs) % Base;
+        a = (a + k * sum) % Base;
+        return (int) (b << 16 | a);
+    }
+
+    /**
+     * The codes for one way of writing the repeated rows
+     */
+    private static final class Codes {
+        private final ScanlineDeflater.Huffman literals = new ScanlineDeflater.Huffman(LiteralCodes, 15);
+        private final ScanlineDeflater.Huffman distances = new ScanlineDeflater.Huffman(DistanceCodes, 15);
+    }
+}
@@ -0,0 +1,19 @@
+package be.twofold.tinypng;
+
+/**
+ * Looks up the code that uses the Vector API.
+ * <p>
+ * This is the version for Java 11. The multi-release JAR has another version for Java 17 and up,
+ * next to the kernels themselves.
+ */
+final class VectorSupport {
+    private VectorSupport() {
+    }
+
+    /**
+     * Returns the filter kernels that use the Vector API, or {@code null} when it is not available
+     */
+    static FilterKernels filterKernels() {
+        return null;
+    }
+}
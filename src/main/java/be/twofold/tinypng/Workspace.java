@@ -0,0 +1,84 @@
+package be.twofold.tinypng;
+
+import java.util.*;
+
+/**
+ * The expensive state needed to encode an image: the compressor, the IDAT buffer, the staging buffer
+ * and the filter rows.
+ * <p>
+ * A workspace can be reused for many images, one at a time, which avoids setting up zlib
+ * and allocating the buffers for every image.
+ */
+final class Workspace implements AutoCloseable {
+    private static final int StageSize = 128 * 1024;
+
+    private final PngOptions options;
+    private final byte[] buffer;
+    private byte[] stage;
+    private Compressor compressor;
+    private PngFilter filter;
+
+    Workspace(PngOptions options) {
+        this.options = Objects.requireNonNull(options);
+        this.buffer = new byte[options.idatSize()];
+    }
+
+    PngOptions options() {
+        return options;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer in which small writes are gathered before they are passed to the deflater
+     */
+    byte[] stage() {
+        if (stage == null) {
+            stage = new byte[StageSize];
+        }
+        return stage;
+    }
+
+    /**
+     * Returns the compressor, reset so it can start a new stream for rows of the given format
+     */
+    Compressor compressor(PngFormat format) {
+        if (compressor == null) {
+            compressor = options.compressorType() == CompressorType.JAVA
+                ? new ScanlineDeflater()
+                : new ZlibCompressor(options);
+        }
+        compressor.reset(format);
+        return compressor;
+    }
+
+    /**
+     * Returns a filter for the given format, reusing the previous one if the rows have the same layout
+     */
+    PngFilter filter(PngFormat format) {
+        if (filter != null
+            && filter.format().bytesPerPixel() == format.bytesPerPixel()
+            && filter.format().bytesPerRow() == format.bytesPerRow()) {
+            filter.reset();
+            return filter;
+        }
+
+        if (filter != null) {
+            filter.close();
+        }
+        filter = new PngFilter(format, options);
+        return filter;
+    }
+
+    @Override
+    public void close() {
+        if (compressor != null) {
+            compressor.end();
+        }
+        if (filter != null) {
+            filter.close();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package be.twofold.tinypng;
+
+import java.util.zip.*;
+
+/**
+ * The compressor backed by zlib, through {@link Deflater}
+ */
+final class ZlibCompressor implements Compressor {
+    private final Deflater deflater;
+
+    ZlibCompressor(PngOptions options) {
+        this.deflater = new Deflater(options.compressionLevel());
+        this.deflater.setStrategy(options.compressionStrategy().value());
+    }
+
+    @Override
+    public void setInput(byte[] input, int offset, int length) {
+        deflater.setInput(input, offset, length);
+    }
+
+    @Override
+    public boolean needsInput() {
+        return deflater.needsInput();
+    }
+
+    @Override
+    public int deflate(byte[] output, int offset, int length) {
+        return deflater.deflate(output, offset, length);
+    }
+
+    @Override
+    public int flush(byte[] output, int offset, int length) {
+        return deflater.deflate(output, offset, length, Deflater.SYNC_FLUSH);
+    }
+
+    @Override
+    public void finish() {
+        deflater.finish();
+    }
+
+    @Override
+    public boolean finished() {
+        return deflater.finished();
+    }
+
+    @Override
+    public void reset(PngFormat format) {
+        deflater.reset();
+    }
+
+    @Override
+    public void end() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,221 @@
+package be.twofold.tinypng;
+
+import jdk.incubator.vector.*;
+
+/**
+ * The filter kernels with the Vector API.
+ * <p>
+ * Bytes are widened to shorts wherever a sum or the Paeth predictor needs more than 8 bits,
+ * so every byte vector has as many lanes as the preferred short vector.
+ * The Average filter stays in bytes, as {@code (a & b) + ((a ^ b) >>> 1)} is the average rounded down.
+ * The pixel to the left is loaded from {@code bpp} bytes earlier, so no pixel size needs a loop of its own,
+ * and whatever does not fill a vector at the end of a row is done one byte at a time.
+ * <p>
+ * Scores are summed per block of 256 bytes, like the scalar kernels. A block adds up to at most 32768,
+ * so its sum still fits in a short when it is read as unsigned.
+ */
+final class VectorFilterKernels implements FilterKernels {
+    private static final VectorSpecies<Short> Shorts = ShortVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> Bytes = VectorSpecies.of(byte.class, VectorShape.forBitSize(Shorts.vectorBitSize() / 2));
+    private static final int Lanes = Shorts.length();
+
+    private static final int BlockSize = 256;
+
+    /**
+     * Returns whether the vectors are wide enough to be faster than the scalar kernels
+     */
+    static boolean isSupported() {
+        return Lanes >= 8;
+    }
+
+    @Override
+    public long sadNone(byte[] x, int start, int end, long limit) {
+        long sum = 0;
+        for (int i = start; i < end; ) {
+            int blockEnd = Math.min(i + BlockSize, end);
+            ShortVector total = ShortVector.zero(Shorts);
+            for (; i <= blockEnd - Lanes; i += Lanes) {
+                total = total.add(widen(ByteVector.fromArray(Bytes, x, i)).abs());
+            }
+            int blockSum = sum(total);
+            for (; i < blockEnd; i++) {
+                blockSum += Math.abs(x[i]);
+            }
+            sum += blockSum;
+            if (sum >= limit) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public long sadSub(byte[] x, int bpp, int end, long limit) {
+        long sum = 0;
+        for (int i = bpp; i < end; ) {
+            int blockEnd = Math.min(i + BlockSize, end);
+            ShortVector total = ShortVector.zero(Shorts);
+            for (; i <= blockEnd - Lanes; i += Lanes) {
+                ByteVector residual = ByteVector.fromArray(Bytes, x, i).sub(ByteVector.fromArray(Bytes, x, i - bpp));
+                total = total.add(widen(residual).abs());
+            }
+            int blockSum = sum(total);
+            for (; i < blockEnd; i++) {
+                blockSum += Math.abs((byte) (x[i] - x[i - bpp]));
+            }
+            sum += blockSum;
+            if (sum >= limit) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public long sadUp(byte[] x, byte[] b, int start, int end, long limit) {
+        long sum = 0;
+        for (int i = start; i < end; ) {
+            int blockEnd = Math.min(i + BlockSize, end);
+            ShortVector total = ShortVector.zero(Shorts);
+            for (; i <= blockEnd - Lanes; i += Lanes) {
+                ByteVector residual = ByteVector.fromArray(Bytes, x, i).sub(ByteVector.fromArray(Bytes, b, i));
+                total = total.add(widen(residual).abs());
+            }
+            int blockSum = sum(total);
+            for (; i < blockEnd; i++) {
+                blockSum += Math.abs((byte) (x[i] - b[i]));
+            }
+            sum += blockSum;
+            if (sum >= limit) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public long sadAverage(byte[] x, byte[] b, int bpp, int end, long limit) {
+        long sum = 0;
+        for (int i = bpp; i < end; ) {
+            int blockEnd = Math.min(i + BlockSize, end);
+            ShortVector total = ShortVector.zero(Shorts);
+            for (; i <= blockEnd - Lanes; i += Lanes) {
+                ByteVector residual = ByteVector.fromArray(Bytes, x, i).sub(average(x, b, bpp, i));
+                total = total.add(widen(residual).abs());
+            }
+            int blockSum = sum(total);
+            for (; i < blockEnd; i++) {
+                int average = Byte.toUnsignedInt(x[i - bpp]) + Byte.toUnsignedInt(b[i]) >> 1;
+                blockSum += Math.abs((byte) (x[i] - average));
+            }
+            sum += blockSum;
+            if (sum >= limit) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public long sadPaeth(byte[] x, byte[] b, byte[] out, int bpp, int end, long limit) {
+        long sum = 0;
+        for (int i = bpp; i < end; ) {
+            int blockEnd = Math.min(i + BlockSize, end);
+            ShortVector total = ShortVector.zero(Shorts);
+            for (; i <= blockEnd - Lanes; i += Lanes) {
+                ByteVector residual = ByteVector.fromArray(Bytes, x, i).sub(paeth(x, b, bpp, i));
+                residual.intoArray(out, i);
+                total = total.add(widen(residual).abs());
+            }
+            int blockSum = sum(total);
+            for (; i < blockEnd; i++) {
+                int predictor = ScalarFilterKernels.paeth(Byte.toUnsignedInt(x[i - bpp]), Byte.toUnsignedInt(b[i]), Byte.toUnsignedInt(b[i - bpp]));
+                byte residual = (byte) (x[i] - predictor);
+                out[i] = residual;
+                blockSum += Math.abs(residual);
+            }
+            sum += blockSum;
+            if (sum >= limit) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public void writeSub(byte[] x, byte[] out, int bpp, int end) {
+        int i = bpp;
+        for (; i <= end - Lanes; i += Lanes) {
+            ByteVector.fromArray(Bytes, x, i).sub(ByteVector.fromArray(Bytes, x, i - bpp)).intoArray(out, i);
+        }
+        for (; i < end; i++) {
+            out[i] = (byte) (x[i] - x[i - bpp]);
+        }
+    }
+
+    @Override
+    public void writeUp(byte[] x, byte[] b, byte[] out, int start, int end) {
+        int i = start;
+        for (; i <= end - Lanes; i += Lanes) {
+            ByteVector.fromArray(Bytes, x, i).sub(ByteVector.fromArray(Bytes, b, i)).intoArray(out, i);
+        }
+        for (; i < end; i++) {
+            out[i] = (byte) (x[i] - b[i]);
+        }
+    }
+
+    @Override
+    public void writeAverage(byte[] x, byte[] b, byte[] out, int bpp, int end) {
+        int i = bpp;
+        for (; i <= end - Lanes; i += Lanes) {
+            ByteVector.fromArray(Bytes, x, i).sub(average(x, b, bpp, i)).intoArray(out, i);
+        }
+        for (; i < end; i++) {
+            int average = Byte.toUnsignedInt(x[i - bpp]) + Byte.toUnsignedInt(b[i]) >> 1;
+            out[i] = (byte) (x[i] - average);
+        }
+    }
+
+    @Override
+    public void writePaeth(byte[] x, byte[] b, byte[] out, int bpp, int end) {
+        int i = bpp;
+        for (; i <= end - Lanes; i += Lanes) {
+            ByteVector.fromArray(Bytes, x, i).sub(paeth(x, b, bpp, i)).intoArray(out, i);
+        }
+        for (; i < end; i++) {
+            int predictor = ScalarFilterKernels.paeth(Byte.toUnsignedInt(x[i - bpp]), Byte.toUnsignedInt(b[i]), Byte.toUnsignedInt(b[i - bpp]));
+            out[i] = (byte) (x[i] - predictor);
+        }
+    }
+
+    private static ByteVector average(byte[] x, byte[] b, int bpp, int i) {
+        ByteVector left = ByteVector.fromArray(Bytes, x, i - bpp);
+        ByteVector up = ByteVector.fromArray(Bytes, b, i);
+        return left.and(up).add(left.lanewise(VectorOperators.XOR, up).lanewise(VectorOperators.LSHR, 1));
+    }
+
+    private static ByteVector paeth(byte[] x, byte[] b, int bpp, int i) {
+        // The same selection as the scalar version, with masks instead of branches
+        ShortVector left = unsigned(x, i - bpp);
+        ShortVector up = unsigned(b, i);
+        ShortVector upLeft = unsigned(b, i - bpp);
+        ShortVector pa = up.sub(upLeft).abs();
+        ShortVector pb = left.sub(upLeft).abs();
+        ShortVector pc = left.add(up).sub(upLeft).sub(upLeft).abs();
+        VectorMask<Short> useUp = pb.lt(pa);
+        ShortVector predictor = left.blend(up, useUp).blend(upLeft, pc.lt(pa.min(pb)));
+        return (ByteVector) predictor.convertShape(VectorOperators.S2B, Bytes, 0);
+    }
+
+    private static ShortVector unsigned(byte[] a, int i) {
+        return widen(ByteVector.fromArray(Bytes, a, i)).and((short) 0xff);
+    }
+
+    private static ShortVector widen(ByteVector vector) {
+        return (ShortVector) vector.convertShape(VectorOperators.B2S, Shorts, 0);
+    }
+
+    private static int sum(ShortVector vector) {
+        return vector.reduceLanes(VectorOperators.ADD) & 0xffff;
+    }
+}
@@ -0,0 +1,22 @@
+package be.twofold.tinypng;
+
+/**
+ * Looks up the code that uses the Vector API.
+ * <p>
+ * This is the version for Java 17 and up. The Vector API is an incubator module, so it is only used
+ * when the application adds it, with {@code --add-modules jdk.incubator.vector}.
+ */
+final class VectorSupport {
+    private VectorSupport() {
+    }
+
+    /**
+     * Returns the filter kernels that use the Vector API, or {@code null} when it is not available
+     */
+    static FilterKernels filterKernels() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        return VectorFilterKernels.isSupported() ? new VectorFilterKernels() : null;
+    }
+}
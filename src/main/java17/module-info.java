@@ -0,0 +1,6 @@
+module be.twofold.tinypng {
+    requires static java.desktop;
+    requires static jdk.incubator.vector;
+
+    exports be.twofold.tinypng;
+}
@@ -0,0 +1,261 @@
+package be.twofold.tinypng;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.params.*;
+import org.junit.jupiter.params.provider.*;
+
+import javax.imageio.*;
+import java.awt.image.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.zip.*;
+
+import static org.assertj.core.api.Assertions.*;
+
+class ApngWriterTest {
+    private static final int BlendSource = 0;
+    private static final int BlendOver = 1;
+
+    @ParameterizedTest
+    @EnumSource(value = ColorType.class, names = {"GRAY", "RGB", "RGB_ALPHA"})
+    void testFramesDecodeToInput(ColorType colorType) throws IOException {
+        PngFormat format = PngFormat.of(40, 30, BitDepth.EIGHT, colorType);
+        List<byte[]> frames = frames(format);
+
+        byte[] png = encode(format, frames, PngOptions.defaults());
+
+        assertThat(replay(format, png)).containsExactlyElementsOf(frames);
+        assertThat(decode(ImageIO.read(new ByteArrayInputStream(png)), format)).isEqualTo(frames.get(0));
+    }
+
+    @Test
+    void testOnlyDirtyRectangleIsWritten() {
+        PngFormat format = PngFormat.of(100, 100, BitDepth.EIGHT, ColorType.RGB_ALPHA);
+        byte[] first = new byte[format.bytesPerImage()];
+        Arrays.fill(first, (byte) 0xff);
+        byte[] second = first.clone();
+        for (int y = 20; y < 30; y++) {
+            for (int x = 40; x < 45; x++) {
+                second[(y * 100 + x) * 4] = 0;
+            }
+        }
+
+        byte[] png = encode(format, List.of(first, second, second), PngOptions.defaults());
+        List<int[]> controls = frameControls(png);
+
+        assertThat(controls.get(1)).containsExactly(5, 10, 40, 20, BlendSource);
+        assertThat(controls.get(2)).containsExactly(1, 1, 0, 0, BlendOver);
+        assertThat(replay(format, png)).containsExactly(first, second, second);
+    }
+
+    @Test
+    void testOpaqueChangesBlendOver() {
+        PngFormat format = PngFormat.of(10, 10, BitDepth.EIGHT, ColorType.RGB_ALPHA);
+        byte[] first = new byte[format.bytesPerImage()];
+        Arrays.fill(first, (byte) 0xff);
+        byte[] second = first.clone();
+        second[0] = 0;
+        second[99 * 4] = 0;
+
+        byte[] png = encode(format, List.of(first, second), PngOptions.defaults());
+
+        assertThat(frameControls(png).get(1)).containsExactly(10, 10, 0, 0, BlendOver);
+        assertThat(replay(format, png)).containsExactly(first, second);
+    }
+
+    @Test
+    void testWriteFrameThrowsAfterLastFrame() {
+        PngFormat format = PngFormat.of(2, 2, BitDepth.EIGHT, ColorType.GRAY);
+        try (PngEncoder encoder = new PngEncoder(new ByteArrayOutputStream(), format)) {
+            ApngWriter writer = encoder.writeAnimationHeader(1, 0);
+            writer.writeFrame(new byte[4], 1, 10);
+            assertThatIllegalStateException()
+                .isThrownBy(() -> writer.writeFrame(new byte[4], 1, 10))
+                .withMessage("All 1 frames have already been written");
+        }
+    }
+
+    @Test
+    void testCloseThrowsAfterTooFewFrames() {
+        PngFormat format = PngFormat.of(2, 2, BitDepth.EIGHT, ColorType.GRAY);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PngEncoder encoder = new PngEncoder(out, format);
+        ApngWriter writer = encoder.writeAnimationHeader(3, 0);
+        writer.writeFrame(new byte[4], 1, 10);
+
+        assertThatIllegalStateException()
+            .isThrownBy(encoder::close)
+            .withMessage("Expected 3 frames, but only 1 were written");
+        assertThatIllegalStateException()
+            .isThrownBy(() -> writer.writeFrame(new byte[4], 1, 10))
+            .withMessage("Animation has been aborted");
+
+        // No IEND after an acTL that promises more frames than there are
+        byte[] png = out.toByteArray();
+        assertThat(new String(png, png.length - 8, 4, StandardCharsets.ISO_8859_1)).isNotEqualTo("IEND");
+    }
+
+    private static List<byte[]> frames(PngFormat format) {
+        Random random = new Random(42);
+        byte[] frame = new byte[format.bytesPerImage()];
+        random.nextBytes(frame);
+
+        List<byte[]> frames = new ArrayList<>();
+        frames.add(frame.clone());
+        for (int i = 0; i < 6; i++) {
+            // A moving block, a few noisy pixels, and once nothing at all
+            if (i != 3) {
+                int x = random.nextInt(format.width() - 8);
+                int y = random.nextInt(format.height() - 8);
+                for (int row = y; row < y + 8; row++) {
+                    int offset = row * format.bytesPerRow() + x * format.bytesPerPixel();
+                    Arrays.fill(frame, offset, offset + 8 * format.bytesPerPixel(), (byte) (i % 2 == 0 ? 0xff : i));
+                }
+                frame[random.nextInt(frame.length)] ^= 1;
+            }
+            frames.add(frame.clone());
+        }
+        return frames;
+    }
+
+    private static byte[] encode(PngFormat format, List<byte[]> frames, PngOptions options) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PngEncoder encoder = new PngEncoder(out, format, options)) {
+            ApngWriter writer = encoder.writeAnimationHeader(frames.size(), 0);
+            for (byte[] frame : frames) {
+                writer.writeFrame(frame, 1, 10);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns width, height, x, y and the blend op of every frame
+     */
+    private static List<int[]> frameControls(byte[] png) {
+        List<int[]> result = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(png, 8, png.length - 8);
+        while (buffer.hasRemaining()) {
+            int length = buffer.getInt();
+            int type = buffer.getInt();
+            int start = buffer.position();
+            if (type == 0x6663544c) {
+                ByteBuffer fctl = ByteBuffer.wrap(png, start + 4, length - 4);
+                result.add(new int[]{fctl.getInt(), fctl.getInt(), fctl.getInt(), fctl.getInt(), png[start + 25]});
+            }
+            buffer.position(start + length + 4);
+        }
+        return result;
+    }
+
+    /**
+     * Plays the animation, checking the sequence numbers and CRCs, and returns the canvas after every frame
+     */
+    private static List<byte[]> replay(PngFormat format, byte[] png) {
+        List<byte[]> result = new ArrayList<>();
+        byte[] canvas = new byte[format.bytesPerImage()];
+        CRC32 crc32 = new CRC32();
+        int expectedSequence = 0;
+        int[] control = null;
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        ByteBuffer buffer = ByteBuffer.wrap(png, 8, png.length - 8);
+        while (buffer.hasRemaining()) {
+            int length = buffer.getInt();
+            int type = buffer.getInt();
+            int start = buffer.position();
+            buffer.position(start + length);
+            crc32.reset();
+            crc32.update(png, start - 4, length + 4);
+            assertThat(buffer.getInt()).isEqualTo((int) crc32.getValue());
+
+            if (type == 0x49444154) {
+                data.write(png, start, length);
+                continue;
+            }
+            if (type == 0x66644154) {
+                assertThat(ByteBuffer.wrap(png, start, 4).getInt()).isEqualTo(expectedSequence++);
+                data.write(png, start + 4, length - 4);
+                continue;
+            }
+            if (control != null && data.size() > 0) {
+                draw(canvas, format, control, data.toByteArray());
+                result.add(canvas.clone());
+                data.reset();
+            }
+            if (type == 0x6663544c) {
+                assertThat(ByteBuffer.wrap(png, start, 4).getInt()).isEqualTo(expectedSequence++);
+                ByteBuffer fctl = ByteBuffer.wrap(png, start + 4, length - 4);
+                control = new int[]{fctl.getInt(), fctl.getInt(), fctl.getInt(), fctl.getInt(), png[start + 25]};
+                assertThat(png[start + 24]).isEqualTo((byte) 0);
+            }
+        }
+        return result;
+    }
+
+    private static void draw(byte[] canvas, PngFormat format, int[] control, byte[] compressed) {
+        int width = control[0];
+        int height = control[1];
+        int bpp = format.bytesPerPixel();
+        int bytesPerRow = width * bpp;
+        byte[] raw;
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed))) {
+            raw = in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        assertThat(raw).hasSize(height * (bytesPerRow + 1));
+
+        byte[] prior = new byte[bytesPerRow];
+        for (int y = 0; y < height; y++) {
+            int filter = raw[y * (bytesPerRow + 1)];
+            byte[] row = Arrays.copyOfRange(raw, y * (bytesPerRow + 1) + 1, (y + 1) * (bytesPerRow + 1));
+            for (int i = 0; i < bytesPerRow; i++) {
+                int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+                int b = prior[i] & 0xff;
+                int c = i >= bpp ? prior[i - bpp] & 0xff : 0;
+                int predictor;
+                switch (filter) {
+                    case 0: predictor = 0; break;
+                    case 1: predictor = a; break;
+                    case 2: predictor = b; break;
+                    case 3: predictor = (a + b) / 2; break;
+                    default:
+                        int p = a + b - c;
+                        int pa = Math.abs(p - a);
+                        int pb = Math.abs(p - b);
+                        int pc = Math.abs(p - c);
+                        predictor = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                }
+                row[i] = (byte) (row[i] + predictor);
+            }
+            prior = row;
+
+            for (int x = 0; x < width; x++) {
+                int o = ((control[3] + y) * format.width() + control[2] + x) * bpp;
+                boolean transparent = format.colorType() == ColorType.RGB_ALPHA && row[x * bpp + 3] == 0;
+                if (control[4] == BlendOver && transparent) {
+                    continue;
+                }
+                System.arraycopy(row, x * bpp, canvas, o, bpp);
+            }
+        }
+    }
+
+    private static byte[] decode(BufferedImage image, PngFormat format) {
+        byte[] result = new byte[format.bytesPerImage()];
+        Raster raster = image.getRaster();
+        int[] pixel = new int[raster.getNumBands()];
+        for (int y = 0, o = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                raster.getPixel(x, y, pixel);
+                for (int sample : pixel) {
+                    result[o++] = (byte) sample;
+                }
+            }
+        }
+        return result;
+    }
+}
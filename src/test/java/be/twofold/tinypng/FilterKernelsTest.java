@@ -0,0 +1,121 @@
+package be.twofold.tinypng;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.params.*;
+import org.junit.jupiter.params.provider.*;
+
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.*;
+
+class FilterKernelsTest {
+    private static final FilterKernels Scalar = ScalarFilterKernels.Instance;
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 4, 6, 8})
+    void testVectorKernelsMatchScalar(int bpp) {
+        FilterKernels vector = vectorKernels();
+        Random random = new Random(bpp);
+        for (int length : new int[]{0, 1, 7, 15, 16, 33, 255, 256, 257, 1000, 4099}) {
+            int end = bpp + length;
+            for (int round = 0; round < 4; round++) {
+                byte[] x = row(random, bpp, end, round);
+                byte[] b = row(random, bpp, end, round);
+
+                assertThat(vector.sadNone(x, bpp, end, Long.MAX_VALUE)).isEqualTo(Scalar.sadNone(x, bpp, end, Long.MAX_VALUE));
+                assertThat(vector.sadSub(x, bpp, end, Long.MAX_VALUE)).isEqualTo(Scalar.sadSub(x, bpp, end, Long.MAX_VALUE));
+                assertThat(vector.sadUp(x, b, bpp, end, Long.MAX_VALUE)).isEqualTo(Scalar.sadUp(x, b, bpp, end, Long.MAX_VALUE));
+                assertThat(vector.sadAverage(x, b, bpp, end, Long.MAX_VALUE)).isEqualTo(Scalar.sadAverage(x, b, bpp, end, Long.MAX_VALUE));
+
+                byte[] expected = new byte[end];
+                byte[] actual = new byte[end];
+                assertThat(vector.sadPaeth(x, b, actual, bpp, end, Long.MAX_VALUE)).isEqualTo(Scalar.sadPaeth(x, b, expected, bpp, end, Long.MAX_VALUE));
+                assertThat(actual).isEqualTo(expected);
+
+                Scalar.writeSub(x, expected, bpp, end);
+                vector.writeSub(x, actual, bpp, end);
+                assertThat(actual).isEqualTo(expected);
+                Scalar.writeUp(x, b, expected, bpp, end);
+                vector.writeUp(x, b, actual, bpp, end);
+                assertThat(actual).isEqualTo(expected);
+                Scalar.writeAverage(x, b, expected, bpp, end);
+                vector.writeAverage(x, b, actual, bpp, end);
+                assertThat(actual).isEqualTo(expected);
+                Scalar.writePaeth(x, b, expected, bpp, end);
+                vector.writePaeth(x, b, actual, bpp, end);
+                assertThat(actual).isEqualTo(expected);
+            }
+        }
+    }
+
+    @Test
+    void testVectorKernelsStopAtLimit() {
+        FilterKernels vector = vectorKernels();
+        byte[] x = new byte[4 + 4096];
+        Arrays.fill(x, 4, x.length, (byte) 0x80);
+
+        // Every residual is -128, which is the largest a block can add up to
+        assertThat(vector.sadNone(x, 4, x.length, Long.MAX_VALUE)).isEqualTo(4096 * 128);
+        long sad = vector.sadNone(x, 4, x.length, 1000);
+        assertThat(sad).isGreaterThanOrEqualTo(1000).isLessThan(4096 * 128);
+    }
+
+    @ParameterizedTest
+    @EnumSource(FilterStrategy.class)
+    void testFilterMatchesScalar(FilterStrategy strategy) {
+        FilterKernels vector = vectorKernels();
+        PngFormat format = PngFormat.of(123, 40, BitDepth.EIGHT, ColorType.RGB_ALPHA);
+        PngOptions options = PngOptions.defaults().withFilterStrategy(strategy);
+        PngFilter expected = new PngFilter(format, options, Scalar);
+        PngFilter actual = new PngFilter(format, options, vector);
+
+        Random random = new Random(42);
+        byte[] row = new byte[format.bytesPerRow()];
+        for (int y = 0; y < format.height(); y++) {
+            byte[] next = row(random, 0, row.length, y % 4);
+            System.arraycopy(next, 0, row, 0, row.length);
+
+            assertThat(actual.filter(row, 0)).isEqualTo(expected.filter(row, 0));
+            assertThat(Arrays.copyOfRange(actual.bestRow(), 4, 4 + row.length))
+                .isEqualTo(Arrays.copyOfRange(expected.bestRow(), 4, 4 + row.length));
+        }
+        expected.close();
+        actual.close();
+    }
+
+    private static FilterKernels vectorKernels() {
+        // The Java 17 classes are on the test class path, behind the Java 11 ones
+        FilterKernels kernels;
+        try {
+            kernels = (FilterKernels) Class.forName("be.twofold.tinypng.VectorFilterKernels")
+                .getDeclaredConstructor()
+                .newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            kernels = null;
+        }
+        assumeTrue(kernels != null, "Vector API is not available");
+        return kernels;
+    }
+
+    private static byte[] row(Random random, int start, int end, int kind) {
+        byte[] row = new byte[end];
+        for (int i = start; i < end; i++) {
+            switch (kind) {
+                case 0:
+                    row[i] = (byte) random.nextInt();
+                    break;
+                case 1:
+                    row[i] = (byte) (i * 3 + random.nextInt(4));
+                    break;
+                case 2:
+                    row[i] = random.nextBoolean() ? 0 : (byte) 0xff;
+                    break;
+                default:
+                    row[i] = (byte) (random.nextBoolean() ? 0x7f : 0x80);
+                    break;
+            }
+        }
+        return row;
+    }
+}
@@ -0,0 +1,93 @@
+package be.twofold.tinypng;
+
+import org.junit.jupiter.api.*;
+
+import static org.assertj.core.api.Assertions.*;
+
+class OptimizerTest {
+
+    @Test
+    void testRemovesOpaqueAlpha() {
+        Optimizer optimizer = new Optimizer(PngFormat.of(1, 1, BitDepth.SIXTEEN, ColorType.RGB_ALPHA));
+        byte[] actual = optimizer.optimize(new byte[]{1, 2, 3, 4, 5, 6, -1, -1});
+
+        assertThat(actual).containsExactly(1, 2, 3, 4, 5, 6);
+        assertThat(optimizer.format().colorType()).isEqualTo(ColorType.RGB);
+    }
+
+    @Test
+    void testKeepsTranslucentAlpha() {
+        Optimizer optimizer = new Optimizer(PngFormat.of(2, 1, BitDepth.SIXTEEN, ColorType.GRAY_ALPHA));
+        byte[] image = {1, 2, -1, -1, 3, 4, Byte.MAX_VALUE, -1};
+
+        assertThat(optimizer.optimize(image)).isSameAs(image);
+        assertThat(optimizer.format().colorType()).isEqualTo(ColorType.GRAY_ALPHA);
+    }
+
+    @Test
+    void testReduces16BitsTo8BitsAndRemovesAlpha() {
+        Optimizer optimizer = new Optimizer(PngFormat.of(2, 1, BitDepth.SIXTEEN, ColorType.GRAY_ALPHA));
+        byte[] actual = optimizer.optimize(new byte[]{1, 1, -1, -1, 2, 2, -1, -1});
+
+        assertThat(actual).containsExactly(1, 2);
+        assertThat(optimizer.format().bitDepth()).isEqualTo(BitDepth.EIGHT);
+        assertThat(optimizer.format().colorType()).isEqualTo(ColorType.GRAY);
+    }
+
+    @Test
+    void testKeeps16BitsWhenLowBytesDiffer() {
+        Optimizer optimizer = new Optimizer(PngFormat.of(1, 1, BitDepth.SIXTEEN, ColorType.GRAY));
+        byte[] image = {1, 2};
+
+        assertThat(optimizer.optimize(image)).isSameAs(image);
+        assertThat(optimizer.format().bitDepth()).isEqualTo(BitDepth.SIXTEEN);
+    }
+
+    @Test
+    void testReducesColorToGray() {
+        Optimizer optimizer = new Optimizer(PngFormat.of(1, 1, BitDepth.SIXTEEN, ColorType.RGB_ALPHA));
+        byte[] actual = optimizer.optimize(new byte[]{1, 2, 1, 2, 1, 2, 3, 4});
+
+        assertThat(actual).containsExactly(1, 2, 3, 4);
+        assertThat(optimizer.format().colorType()).isEqualTo(ColorType.GRAY_ALPHA);
+    }
+
+    @Test
+    void testReducesToPalette() {
+        Optimizer optimizer = new Optimizer(PngFormat.of(3, 1, BitDepth.EIGHT, ColorType.RGB_ALPHA));
+        byte[] actual = optimizer.optimize(new byte[]{10, 20, 30, 40, 50, 60, 70, -1, 10, 20, 30, 40});
+
+        assertThat(actual).containsExactly(0b0100_0000);
+        assertThat(optimizer.format().colorType()).isEqualTo(ColorType.INDEXED);
+        assertThat(optimizer.format().bitDepth()).isEqualTo(BitDepth.ONE);
+
+        PngPalette palette = optimizer.format().palette().orElseThrow();
+        assertThat(palette).hasSize(2);
+        assertThat(palette.get(0).red()).isEqualTo((byte) 10);
+        assertThat(palette.get(0).alpha()).isEqualTo((byte) 40);
+        assertThat(palette.get(1).blue()).isEqualTo((byte) 70);
+        assertThat(palette.get(1).alpha()).isEqualTo((byte) 0xff);
+    }
+
+    @Test
+    void testKeepsMoreThan256Colors() {
+        Optimizer optimizer = new Optimizer(PngFormat.of(300, 1, BitDepth.EIGHT, ColorType.RGB));
+        byte[] image = new byte[900];
+        for (int i = 0; i < 300; i++) {
+            image[i * 3] = (byte) i;
+            image[i * 3 + 1] = (byte) (i >> 8);
+        }
+
+        assertThat(optimizer.optimize(image)).isSameAs(image);
+        assertThat(optimizer.format().colorType()).isEqualTo(ColorType.RGB);
+    }
+
+    @Test
+    void testReducesGrayBitDepth() {
+        Optimizer optimizer = new Optimizer(PngFormat.of(3, 2, BitDepth.EIGHT, ColorType.GRAY));
+        byte[] actual = optimizer.optimize(new byte[]{0, 0x55, -1, -1, (byte) 0xaa, 0});
+
+        assertThat(actual).containsExactly(0b0001_1100, 0b1110_0000);
+        assertThat(optimizer.format().bitDepth()).isEqualTo(BitDepth.TWO);
+    }
+}
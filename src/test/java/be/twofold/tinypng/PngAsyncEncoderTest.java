@@ -0,0 +1,157 @@
+package be.twofold.tinypng;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.assertj.core.api.Assertions.*;
+
+class PngAsyncEncoderTest {
+
+    @Test
+    void testPublishesSameBytesAsEncoder() throws Exception {
+        PngFormat format = PngFormat.of(200, 150, BitDepth.EIGHT, ColorType.RGB);
+        byte[] image = image(format);
+        PngAsyncEncoder encoder = new PngAsyncEncoder(format, PngOptions.defaults());
+        Collector collector = new Collector();
+        encoder.subscribe(collector);
+
+        try (SubmissionPublisher<byte[]> publisher = new SubmissionPublisher<>()) {
+            publisher.subscribe(encoder);
+            int bytesPerRow = format.bytesPerRow();
+            for (int row = 0; row < format.height(); row += 16) {
+                int rowCount = Math.min(16, format.height() - row);
+                publisher.submit(Arrays.copyOfRange(image, row * bytesPerRow, (row + rowCount) * bytesPerRow));
+            }
+        }
+        collector.subscription.request(1);
+
+        PngAsyncEncoder.Stats stats = encoder.result().get(10, TimeUnit.SECONDS);
+        byte[] expected = encode(format, image);
+        assertThat(collector.bytes()).isEqualTo(expected);
+        assertThat(collector.completed).isTrue();
+        assertThat(stats.rows()).isEqualTo(format.height());
+        assertThat(stats.inputBytes()).isEqualTo(image.length);
+        assertThat(stats.outputBytes()).isEqualTo(expected.length);
+    }
+
+    @Test
+    void testDoesNotRequestRowsWithoutDemand() throws Exception {
+        PngFormat format = PngFormat.of(16, 16, BitDepth.EIGHT, ColorType.GRAY);
+        PngAsyncEncoder encoder = new PngAsyncEncoder(format, PngOptions.defaults());
+        List<Long> requests = new CopyOnWriteArrayList<>();
+        encoder.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                requests.add(n);
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        Collector collector = new Collector();
+        encoder.subscribe(collector);
+
+        assertThat(requests).isEmpty();
+        collector.subscription.request(1);
+        assertThat(requests).containsExactly(1L);
+
+        encoder.onNext(new byte[16 * 16]);
+        encoder.onComplete();
+        encoder.result().get(10, TimeUnit.SECONDS);
+        assertThat(collector.completed).isTrue();
+    }
+
+    @Test
+    void testFailsOnPartialRow() throws InterruptedException {
+        PngFormat format = PngFormat.of(16, 16, BitDepth.EIGHT, ColorType.GRAY);
+        PngAsyncEncoder encoder = new PngAsyncEncoder(format, PngOptions.defaults());
+        Collector collector = new Collector();
+        encoder.subscribe(collector);
+
+        try (SubmissionPublisher<byte[]> publisher = new SubmissionPublisher<>()) {
+            publisher.subscribe(encoder);
+            collector.subscription.request(1);
+            publisher.submit(new byte[15]);
+        }
+
+        assertThatExceptionOfType(ExecutionException.class)
+            .isThrownBy(() -> encoder.result().get(10, TimeUnit.SECONDS))
+            .withCauseInstanceOf(IllegalArgumentException.class)
+            .withMessageContaining("Item of 15 bytes does not hold whole rows of 16 bytes");
+        assertThat(collector.done.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(collector.error).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testNullItemThrowsOnCallerThread() {
+        PngFormat format = PngFormat.of(16, 16, BitDepth.EIGHT, ColorType.GRAY);
+        PngAsyncEncoder encoder = new PngAsyncEncoder(format, PngOptions.defaults());
+
+        assertThatNullPointerException()
+            .isThrownBy(() -> encoder.onNext(null))
+            .withMessage("item must not be null");
+        assertThat(encoder.result()).isNotDone();
+    }
+
+    private static byte[] image(PngFormat format) {
+        byte[] image = new byte[format.bytesPerImage()];
+        new Random(42).nextBytes(image);
+        for (int i = 0; i < image.length / 2; i++) {
+            image[i] = (byte) (i / 9);
+        }
+        return image;
+    }
+
+    private static byte[] encode(PngFormat format, byte[] image) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PngEncoder encoder = new PngEncoder(out, format)) {
+            encoder.writeImage(image);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Takes one buffer at a time, asking for the next one after every buffer
+     */
+    private static final class Collector implements Flow.Subscriber<ByteBuffer> {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Flow.Subscription subscription;
+        private volatile boolean completed;
+        private volatile Throwable error;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public synchronized void onNext(ByteBuffer item) {
+            byte[] bytes = new byte[item.remaining()];
+            item.get(bytes);
+            out.writeBytes(bytes);
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+            done.countDown();
+        }
+
+        synchronized byte[] bytes() {
+            return out.toByteArray();
+        }
+    }
+}
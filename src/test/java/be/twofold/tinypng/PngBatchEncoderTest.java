@@ -0,0 +1,54 @@
+package be.twofold.tinypng;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.assertj.core.api.Assertions.*;
+
+class PngBatchEncoderTest {
+
+    @Test
+    void testBatchMatchesSingleEncoder() {
+        List<PngFormat> formats = List.of(
+            PngFormat.of(64, 64, BitDepth.EIGHT, ColorType.RGB_ALPHA),
+            PngFormat.of(100, 30, BitDepth.EIGHT, ColorType.GRAY),
+            PngFormat.of(64, 64, BitDepth.SIXTEEN, ColorType.RGB)
+        );
+
+        Random random = new Random(42);
+        List<PngBatchEncoder.Job> jobs = new ArrayList<>();
+        List<byte[]> expected = new ArrayList<>();
+        List<ByteArrayOutputStream> outputs = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            PngFormat format = formats.get(i % formats.size());
+            byte[] image = new byte[format.bytesPerImage()];
+            for (int j = 0; j < image.length; j++) {
+                image[j] = (byte) (j / 5 + random.nextInt(4));
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (PngEncoder encoder = new PngEncoder(out, format)) {
+                encoder.writeImage(image);
+            }
+            expected.add(out.toByteArray());
+
+            ByteArrayOutputStream batchOut = new ByteArrayOutputStream();
+            outputs.add(batchOut);
+            jobs.add(new PngBatchEncoder.Job(format, image, batchOut));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (PngBatchEncoder encoder = new PngBatchEncoder(PngOptions.defaults().withExecutor(executor))) {
+            encoder.submitAll(jobs).join();
+        } finally {
+            executor.shutdown();
+        }
+
+        for (int i = 0; i < jobs.size(); i++) {
+            assertThat(outputs.get(i).toByteArray()).isEqualTo(expected.get(i));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package be.twofold.tinypng;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.*;
+
+class PngCacheTest {
+
+    @Test
+    void testHitReturnsSameBytesAsEncoder() {
+        PngFormat format = PngFormat.of(64, 48, BitDepth.EIGHT, ColorType.RGB);
+        byte[] image = image(format, 1);
+        PngCache cache = new PngCache(1024 * 1024, PngOptions.defaults());
+
+        byte[] first = cache.encode(format, image);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.write(format, image.clone(), out);
+
+        assertThat(first).isEqualTo(encode(format, image));
+        assertThat(out.toByteArray()).isEqualTo(first);
+        assertThat(cache.hits()).isEqualTo(1);
+        assertThat(cache.misses()).isEqualTo(1);
+    }
+
+    @Test
+    void testModifyingResultDoesNotAffectCache() {
+        PngFormat format = PngFormat.of(64, 48, BitDepth.EIGHT, ColorType.RGB);
+        byte[] image = image(format, 1);
+        PngCache cache = new PngCache(1024 * 1024, PngOptions.defaults());
+
+        byte[] first = cache.encode(format, image);
+        Arrays.fill(first, (byte) 0);
+
+        assertThat(cache.encode(format, image)).isEqualTo(encode(format, image));
+        assertThat(cache.hits()).isEqualTo(1);
+    }
+
+    @Test
+    void testDifferentPixelsOrFormatMiss() {
+        PngFormat format = PngFormat.of(64, 48, BitDepth.EIGHT, ColorType.RGB);
+        byte[] image = image(format, 1);
+        byte[] changed = image.clone();
+        changed[changed.length - 1] ^= 1;
+        PngFormat transposed = PngFormat.of(48, 64, BitDepth.EIGHT, ColorType.RGB);
+        PngCache cache = new PngCache(1024 * 1024, PngOptions.defaults());
+
+        cache.encode(format, image);
+        assertThat(cache.encode(format, changed)).isEqualTo(encode(format, changed));
+        assertThat(cache.encode(transposed, image)).isEqualTo(encode(transposed, image));
+
+        assertThat(cache.hits()).isEqualTo(0);
+        assertThat(cache.size()).isEqualTo(3);
+    }
+
+    @Test
+    void testEvictsLeastRecentlyUsedBySize() {
+        PngFormat format = PngFormat.of(64, 48, BitDepth.EIGHT, ColorType.RGB);
+        byte[] a = image(format, 1);
+        byte[] b = image(format, 2);
+        byte[] c = image(format, 3);
+        int size = encode(format, a).length;
+        PngCache cache = new PngCache(size * 5L / 2, PngOptions.defaults());
+
+        cache.encode(format, a);
+        cache.encode(format, b);
+        cache.encode(format, a);
+        cache.encode(format, c);
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.bytes()).isLessThanOrEqualTo(size * 5L / 2);
+
+        cache.encode(format, a);
+        assertThat(cache.hits()).isEqualTo(2);
+        cache.encode(format, b);
+        assertThat(cache.misses()).isEqualTo(4);
+    }
+
+    @Test
+    void testHashDoesNotDependOnHowDataIsSplit() {
+        byte[] data = new byte[1000];
+        new Random(42).nextBytes(data);
+        ImageHash whole = new ImageHash(7);
+        whole.update(data, 0, data.length);
+
+        for (int piece : new int[]{1, 5, 31, 32, 33, 100}) {
+            ImageHash split = new ImageHash(7);
+            for (int offset = 0; offset < data.length; offset += piece) {
+                split.update(data, offset, Math.min(piece, data.length - offset));
+            }
+            assertThat(split.digest()).isEqualTo(whole.digest());
+        }
+
+        ImageHash seeded = new ImageHash(8);
+        seeded.update(data, 0, data.length);
+        assertThat(seeded.digest()).isNotEqualTo(whole.digest());
+    }
+
+    private static byte[] image(PngFormat format, int seed) {
+        byte[] image = new byte[format.bytesPerImage()];
+        new Random(seed).nextBytes(image);
+        return image;
+    }
+
+    private static byte[] encode(PngFormat format, byte[] image) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PngEncoder encoder = new PngEncoder(out, format)) {
+            encoder.writeImage(image);
+        }
+        return out.toByteArray();
+    }
+}
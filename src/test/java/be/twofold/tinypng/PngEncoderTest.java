@@ -1,5 +1,7 @@
 package be.twofold.tinypng;
 
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.*;
 import org.junit.jupiter.params.*;
 import org.junit.jupiter.params.provider.*;
 
@@ -7,54 +9,646 @@ import javax.imageio.*;
 import java.awt.image.*;
 import java.io.*;
 import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.stream.*;
+import java.util.zip.*;
 
 import static org.assertj.core.api.Assertions.*;
 
 class PngEncoderTest {
 
     @ParameterizedTest
-    @ValueSource(strings = {
-        "basi0g01", "basi0g02", "basi0g04", "basi0g08", "basi0g16", "basi2c08", "basi2c16", "basi3p01",
-        "basi3p02", "basi3p04", "basi3p08", "basi4a08", "basi4a16", "basi6a08", "basi6a16", "basn0g01",
-        "basn0g02", "basn0g04", "basn0g08", "basn0g16", "basn2c08", "basn2c16", "basn3p01", "basn3p02",
-        "basn3p04", "basn3p08", "basn4a08", "basn4a16", "basn6a08", "basn6a16", "bgai4a08", "bgai4a16",
-        "bgan6a08", "bgan6a16", "bgbn4a08", "bggn4a16", "bgwn6a08", "bgyn6a16", "ccwn2c08", "ccwn3p08",
-        "cdfn2c08", "cdhn2c08", "cdsn2c08", "cdun2c08", "ch1n3p04", "ch2n3p08", "cm0n0g04", "cm7n0g04",
-        "cm9n0g04", "cs3n2c16", "cs3n3p08", "cs5n2c08", "cs5n3p08", "cs8n2c08", "cs8n3p08", "ct0n0g04",
-        "ct1n0g04", "cten0g04", "ctfn0g04", "ctgn0g04", "cthn0g04", "ctjn0g04", "ctzn0g04", "exif2c08",
-        "f00n0g08", "f00n2c08", "f01n0g08", "f01n2c08", "f02n0g08", "f02n2c08", "f03n0g08", "f03n2c08",
-        "f04n0g08", "f04n2c08", "f99n0g04", "g03n0g16", "g03n2c08", "g03n3p04", "g04n0g16", "g04n2c08",
-        "g04n3p04", "g05n0g16", "g05n2c08", "g05n3p04", "g07n0g16", "g07n2c08", "g07n3p04", "g10n0g16",
-        "g10n2c08", "g10n3p04", "g25n0g16", "g25n2c08", "g25n3p04", "oi1n0g16", "oi1n2c16", "oi2n0g16",
-        "oi2n2c16", "oi4n0g16", "oi4n2c16", "oi9n0g16", "oi9n2c16", "pp0n2c16", "pp0n6a08", "ps1n0g08",
-        "ps1n2c16", "ps2n0g08", "ps2n2c16", "s01i3p01", "s01n3p01", "s02i3p01", "s02n3p01", "s03i3p01",
-        "s03n3p01", "s04i3p01", "s04n3p01", "s05i3p02", "s05n3p02", "s06i3p02", "s06n3p02", "s07i3p02",
-        "s07n3p02", "s08i3p02", "s08n3p02", "s09i3p02", "s09n3p02", "s32i3p04", "s32n3p04", "s33i3p04",
-        "s33n3p04", "s34i3p04", "s34n3p04", "s35i3p04", "s35n3p04", "s36i3p04", "s36n3p04", "s37i3p04",
-        "s37n3p04", "s38i3p04", "s38n3p04", "s39i3p04", "s39n3p04", "s40i3p04", "s40n3p04", "tbbn0g04",
-        "tbbn2c16", "tbbn3p08", "tbgn2c16", "tbgn3p08", "tbrn2c08", "tbwn0g16", "tbwn3p08", "tbyn3p08",
-        "tm3n3p02", "tp0n0g08", "tp0n2c08", "tp0n3p08", "tp1n3p08", "z00n2c08", "z03n2c08", "z06n2c08",
-        "z09n2c08"
-    })
+    @MethodSource("provideFilenames")
     void testRoundTrip(String filename) throws IOException {
         BufferedImage source = readImage("/png/" + filename + ".png");
         byte[] expected = decode(source);
 
+        byte[] encoded = encode(fromImage(source), expected);
+        byte[] actual = decode(ImageIO.read(new ByteArrayInputStream(encoded)));
+
+        assertThat(actual).isEqualTo(expected);
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideFilenames")
+    void testRoundTripOptimized(String filename) throws IOException {
+        BufferedImage source = readImage("/png/" + filename + ".png");
+        PngFormat format = fromImage(source);
+        byte[] image = decode(source);
+
         ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PngEncoder encoder = new PngEncoder(out, format, PngOptions.defaults().withOptimize(true))) {
+            encoder.writeImage(image);
+        }
+        BufferedImage expected = ImageIO.read(new ByteArrayInputStream(encode(format, image)));
+        BufferedImage actual = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertThat(normalize(actual)).isEqualTo(normalize(expected));
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideFilenames")
+    void testRoundTripInterlaced(String filename) throws IOException {
+        BufferedImage source = readImage("/png/" + filename + ".png");
+        byte[] expected = decode(source);
+        PngFormat format = fromImage(source).withInterlaceMethod(InterlaceMethod.ADAM7);
+
+        byte[] encoded = encode(format, expected);
+        byte[] actual = decode(ImageIO.read(new ByteArrayInputStream(encoded)));
+
+        assertThat(encoded[28]).isEqualTo((byte) 1);
+        assertThat(actual).isEqualTo(expected);
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideFilenames")
+    void testRoundTripJavaCompressor(String filename) throws IOException {
+        BufferedImage source = readImage("/png/" + filename + ".png");
+        byte[] expected = decode(source);
+
+        byte[] encoded = encode(fromImage(source), expected, PngOptions.defaults().withCompressorType(CompressorType.JAVA));
+        byte[] actual = decode(ImageIO.read(new ByteArrayInputStream(encoded)));
+
+        assertThat(actual).isEqualTo(expected);
+        assertValidCrcs(encoded);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"flat", "rows", "noise", "mixed"})
+    void testJavaCompressorMatchesZlib(String content) {
+        PngFormat format = PngFormat.of(700, 500, BitDepth.EIGHT, ColorType.RGB);
+        byte[] image = new byte[format.bytesPerImage()];
+        Random random = new Random(42);
+        int bytesPerRow = format.bytesPerRow();
+        for (int i = 0; i < image.length; i++) {
+            switch (content) {
+                case "flat":
+                    image[i] = (byte) (i / 50_000);
+                    break;
+                case "rows":
+                    image[i] = (byte) ((i % bytesPerRow) * 7 / 13);
+                    break;
+                case "noise":
+                    image[i] = (byte) random.nextInt();
+                    break;
+                default:
+                    image[i] = (byte) (i % 3000 < 1000 ? random.nextInt(4) : i / 3);
+                    break;
+            }
+        }
+        PngOptions options = PngOptions.defaults().withFilterStrategy(FilterStrategy.NONE);
+
+        byte[] encoded = encode(format, image, options.withCompressorType(CompressorType.JAVA));
+
+        assertThat(inflateIDAT(encoded)).isEqualTo(inflateIDAT(encode(format, image, options)));
+        assertValidCrcs(encoded);
+    }
+
+    @ParameterizedTest
+    @CsvSource({"0, ZLIB", "1, ZLIB", "1, JAVA"})
+    void testInterlacedFlushesEveryPass(int compressionLevel, CompressorType compressorType) throws IOException {
+        PngFormat format = PngFormat.of(64, 64, BitDepth.EIGHT, ColorType.RGB)
+            .withInterlaceMethod(InterlaceMethod.ADAM7);
+        byte[] image = new byte[format.bytesPerImage()];
+        new Random(42).nextBytes(image);
+
+        List<Integer> flushedSizes = new ArrayList<>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public void flush() {
+                flushedSizes.add(size());
+            }
+        };
+        PngOptions options = PngOptions.defaults().withCompressionLevel(compressionLevel).withCompressorType(compressorType);
+        try (PngEncoder encoder = new PngEncoder(out, format, options)) {
+            encoder.writeHeader().writeImage(image);
+        }
+
+        assertThat(flushedSizes).hasSize(7).isSorted();
+        assertThat(decode(ImageIO.read(new ByteArrayInputStream(out.toByteArray())))).isEqualTo(image);
+    }
+
+    @Test
+    void testInterlacedThrowsOnPartialRows() {
+        PngFormat format = PngFormat.of(2, 2, BitDepth.EIGHT, ColorType.GRAY)
+            .withInterlaceMethod(InterlaceMethod.ADAM7);
+        try (PngEncoder encoder = new PngEncoder(new ByteArrayOutputStream(), format)) {
+            PngWriter writer = encoder.writeHeader();
+            assertThatIllegalStateException()
+                .isThrownBy(() -> writer.writeRows(new byte[2], 0, 1))
+                .withMessage("An interlaced image must be written in one go");
+        }
+    }
+
+    private static Stream<String> provideFilenames() {
+        return Stream.of(
+            "basi0g01", "basi0g02", "basi0g04", "basi0g08", "basi0g16", "basi2c08", "basi2c16", "basi3p01",
+            "basi3p02", "basi3p04", "basi3p08", "basi4a08", "basi4a16", "basi6a08", "basi6a16", "basn0g01",
+            "basn0g02", "basn0g04", "basn0g08", "basn0g16", "basn2c08", "basn2c16", "basn3p01", "basn3p02",
+            "basn3p04", "basn3p08", "basn4a08", "basn4a16", "basn6a08", "basn6a16", "bgai4a08", "bgai4a16",
+            "bgan6a08", "bgan6a16", "bgbn4a08", "bggn4a16", "bgwn6a08", "bgyn6a16", "ccwn2c08", "ccwn3p08",
+            "cdfn2c08", "cdhn2c08", "cdsn2c08", "cdun2c08", "ch1n3p04", "ch2n3p08", "cm0n0g04", "cm7n0g04",
+            "cm9n0g04", "cs3n2c16", "cs3n3p08", "cs5n2c08", "cs5n3p08", "cs8n2c08", "cs8n3p08", "ct0n0g04",
+            "ct1n0g04", "cten0g04", "ctfn0g04", "ctgn0g04", "cthn0g04", "ctjn0g04", "ctzn0g04", "exif2c08",
+            "f00n0g08", "f00n2c08", "f01n0g08", "f01n2c08", "f02n0g08", "f02n2c08", "f03n0g08", "f03n2c08",
+            "f04n0g08", "f04n2c08", "f99n0g04", "g03n0g16", "g03n2c08", "g03n3p04", "g04n0g16", "g04n2c08",
+            "g04n3p04", "g05n0g16", "g05n2c08", "g05n3p04", "g07n0g16", "g07n2c08", "g07n3p04", "g10n0g16",
+            "g10n2c08", "g10n3p04", "g25n0g16", "g25n2c08", "g25n3p04", "oi1n0g16", "oi1n2c16", "oi2n0g16",
+            "oi2n2c16", "oi4n0g16", "oi4n2c16", "oi9n0g16", "oi9n2c16", "pp0n2c16", "pp0n6a08", "ps1n0g08",
+            "ps1n2c16", "ps2n0g08", "ps2n2c16", "s01i3p01", "s01n3p01", "s02i3p01", "s02n3p01", "s03i3p01",
+            "s03n3p01", "s04i3p01", "s04n3p01", "s05i3p02", "s05n3p02", "s06i3p02", "s06n3p02", "s07i3p02",
+            "s07n3p02", "s08i3p02", "s08n3p02", "s09i3p02", "s09n3p02", "s32i3p04", "s32n3p04", "s33i3p04",
+            "s33n3p04", "s34i3p04", "s34n3p04", "s35i3p04", "s35n3p04", "s36i3p04", "s36n3p04", "s37i3p04",
+            "s37n3p04", "s38i3p04", "s38n3p04", "s39i3p04", "s39n3p04", "s40i3p04", "s40n3p04", "tbbn0g04",
+            "tbbn2c16", "tbbn3p08", "tbgn2c16", "tbgn3p08", "tbrn2c08", "tbwn0g16", "tbwn3p08", "tbyn3p08",
+            "tm3n3p02", "tp0n0g08", "tp0n2c08", "tp0n3p08", "tp1n3p08", "z00n2c08", "z03n2c08", "z06n2c08",
+            "z09n2c08"
+        );
+    }
+
+    @Test
+    void testWriteRowsMatchesWriteImage() throws IOException {
+        BufferedImage source = readImage("/png/basn6a08.png");
         PngFormat format = fromImage(source);
-        Optimizer optimizer = new Optimizer(format);
-        byte[] optimized = optimizer.optimize(expected);
-        try (PngEncoder encoder = new PngEncoder(out, optimizer.format())) {
-            encoder.writeHeader().writeImage(optimized);
+        byte[] image = decode(source);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PngEncoder encoder = new PngEncoder(out, format)) {
+            PngWriter writer = encoder.writeHeader();
+            int bytesPerRow = format.bytesPerRow();
+            for (int row = 0; row < format.height(); row += 5) {
+                int rowCount = Math.min(5, format.height() - row);
+                byte[] band = Arrays.copyOfRange(image, row * bytesPerRow, (row + rowCount) * bytesPerRow);
+                writer.writeRows(band, 0, rowCount);
+            }
+            writer.finish();
         }
 
+        assertThat(out.toByteArray()).isEqualTo(encode(format, image));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "solid,    100, 80, RGB_ALPHA, ADAPTIVE",
+        "solid,    9000, 3, RGB_ALPHA, ADAPTIVE",
+        "solid,    1,  40,  GRAY,      ADAPTIVE",
+        "gradient, 300, 50, RGB,       ADAPTIVE",
+        "gradient, 300, 50, RGB,       NONE",
+        "gradient, 300, 50, RGB,       PAETH",
+        "gradient, 300, 3,  GRAY,      ENTROPY",
+        "noise,    200, 90, GRAY,      NONE",
+    })
+    void testUniformImageMatchesRows(String content, int width, int height, ColorType colorType, FilterStrategy filterStrategy) throws IOException {
+        PngFormat format = PngFormat.of(width, height, BitDepth.EIGHT, colorType);
+        int bytesPerRow = format.bytesPerRow();
+        byte[] row = new byte[bytesPerRow];
+        Random random = new Random(42);
+        for (int i = 0; i < bytesPerRow; i++) {
+            row[i] = (byte) (content.equals("solid") ? 0x80 + i % format.bytesPerPixel() : content.equals("gradient") ? i / 7 : random.nextInt());
+        }
+        byte[] image = new byte[format.bytesPerImage()];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(row, 0, image, y * bytesPerRow, bytesPerRow);
+        }
+        PngOptions options = PngOptions.defaults().withFilterStrategy(filterStrategy);
+
+        byte[] uniform = encode(format, image, options);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PngEncoder encoder = new PngEncoder(out, format, options)) {
+            PngWriter writer = encoder.writeHeader();
+            writer.writeRows(image, 0, height);
+            writer.finish();
+        }
+
+        byte[] filtered = inflateIDAT(uniform);
+        assertThat(filtered).isEqualTo(inflateIDAT(out.toByteArray()));
+        // Only allow for the empty stored block that ends the first two rows, and the header of the next block
+        assertThat(uniform.length).isLessThanOrEqualTo(out.size() + 20);
+        assertThat(decode(ImageIO.read(new ByteArrayInputStream(uniform)))).isEqualTo(image);
+        if (!filterStrategy.isFixed()) {
+            for (int i = bytesPerRow + 1; i < filtered.length; i += bytesPerRow + 1) {
+                assertThat(filtered[i]).isEqualTo((byte) 2);
+            }
+        }
+        assertValidCrcs(uniform);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 4})
+    void testWriteBandsMatchesWriteImage(int threads) {
+        PngFormat format = PngFormat.of(300, 400, BitDepth.EIGHT, ColorType.RGB);
+        byte[] image = new byte[format.bytesPerImage()];
+        new Random(42).nextBytes(image);
+        for (int i = 0; i < image.length / 2; i++) {
+            image[i] = (byte) (i / 5);
+        }
+        PngOptions options = PngOptions.defaults().withThreads(threads);
+
+        List<Integer> firstRows = new ArrayList<>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PngEncoder encoder = new PngEncoder(out, format, options)) {
+            int bytesPerRow = format.bytesPerRow();
+            encoder.writeHeader().writeBands(150, (firstRow, rowCount, band) -> {
+                firstRows.add(firstRow);
+                System.arraycopy(image, firstRow * bytesPerRow, band, 0, rowCount * bytesPerRow);
+            });
+        }
+
+        assertThat(firstRows).containsExactly(0, 150, 300);
+        assertThat(inflateIDAT(out.toByteArray())).isEqualTo(inflateIDAT(encode(format, image)));
+        assertValidCrcs(out.toByteArray());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2})
+    void testListenerReceivesMetrics(int threads) {
+        PngFormat format = PngFormat.of(300, 400, BitDepth.EIGHT, ColorType.RGB_ALPHA);
+        byte[] image = new byte[format.bytesPerImage()];
+        new Random(42).nextBytes(image);
+        List<int[]> chunks = new ArrayList<>();
+        List<PngMetrics> images = new ArrayList<>();
+        PngListener listener = new PngListener() {
+            @Override
+            public void idatWritten(int rawBytes, int compressedBytes) {
+                chunks.add(new int[]{rawBytes, compressedBytes});
+            }
+
+            @Override
+            public void imageWritten(PngMetrics metrics) {
+                images.add(metrics);
+            }
+        };
+        PngOptions options = PngOptions.defaults().withThreads(threads).withOptimize(true).withListener(listener);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PngEncoder encoder = new PngEncoder(out, format, options)) {
+            encoder.writeImage(image);
+        }
         byte[] encoded = out.toByteArray();
+
+        assertThat(images).hasSize(1);
+        PngMetrics metrics = images.get(0);
+        long rows = IntStream.range(0, 5).mapToLong(metrics::filterTypeCount).sum();
+        assertThat(rows).isEqualTo(format.height());
+        assertThat(metrics.idatChunks()).isEqualTo(chunks.size()).isEqualTo(idatSizes(encoded).size());
+        assertThat(metrics.bytesIn()).isEqualTo(format.height() * (format.bytesPerRow() + 1L));
+        assertThat(metrics.bytesIn()).isEqualTo(chunks.stream().mapToLong(chunk -> chunk[0]).sum());
+        assertThat(metrics.bytesOut()).isEqualTo(idatSizes(encoded).stream().mapToLong(Integer::longValue).sum());
+        assertThat(metrics.optimizeNanos()).isPositive();
+        assertThat(metrics.filterNanos()).isPositive();
+        assertThat(metrics.deflateNanos()).isPositive();
+        assertThat(metrics.chunkWriteNanos()).isPositive();
+    }
+
+    @Test
+    void testWriteRowsThrowsOnTooManyRows() {
+        PngFormat format = PngFormat.of(4, 2, BitDepth.EIGHT, ColorType.GRAY);
+        try (PngEncoder encoder = new PngEncoder(new ByteArrayOutputStream(), format)) {
+            PngWriter writer = encoder.writeHeader();
+            writer.writeRows(new byte[8], 0, 2);
+            assertThatIllegalArgumentException()
+                .isThrownBy(() -> writer.writeRows(new byte[4], 0, 1));
+            writer.finish();
+        }
+    }
+
+    @Test
+    void testFinishThrowsOnMissingRows() {
+        PngFormat format = PngFormat.of(4, 2, BitDepth.EIGHT, ColorType.GRAY);
+        try (PngEncoder encoder = new PngEncoder(new ByteArrayOutputStream(), format)) {
+            PngWriter writer = encoder.writeHeader();
+            writer.writeRows(new byte[4], 0, 1);
+            assertThatIllegalStateException()
+                .isThrownBy(writer::finish)
+                .withMessage("Expected 2 rows, but only 1 were written");
+        }
+    }
+
+    @Test
+    void testParallelCompressionRoundTrip() throws IOException {
+        PngFormat format = PngFormat.of(700, 500, BitDepth.EIGHT, ColorType.RGB);
+        byte[] image = new byte[format.bytesPerImage()];
+        Random random = new Random(42);
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) (i % 4096 < 2048 ? i / 3 : random.nextInt());
+        }
+
+        byte[] encoded = encode(format, image, PngOptions.defaults().withThreads(4));
         byte[] actual = decode(ImageIO.read(new ByteArrayInputStream(encoded)));
 
+        assertThat(actual).isEqualTo(image);
+        assertValidCrcs(encoded);
+    }
+
+    @Test
+    void testParallelFilterMatchesSerialFilter() {
+        PngFormat format = PngFormat.of(300, 400, BitDepth.EIGHT, ColorType.RGB_ALPHA);
+        byte[] image = new byte[format.bytesPerImage()];
+        new Random(42).nextBytes(image);
+        for (int i = 0; i < image.length / 2; i++) {
+            image[i] = (byte) (i / 7);
+        }
+
+        byte[] expected = inflateIDAT(encode(format, image));
+        byte[] actual = inflateIDAT(encode(format, image, PngOptions.defaults().withThreads(4)));
+
         assertThat(actual).isEqualTo(expected);
     }
 
+    @Test
+    void testByteBufferSourceMatchesByteArray() {
+        PngFormat format = PngFormat.of(300, 200, BitDepth.EIGHT, ColorType.RGB);
+        byte[] image = new byte[format.bytesPerImage()];
+        new Random(42).nextBytes(image);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(image.length + 10);
+        buffer.position(10).mark();
+        buffer.put(image).reset();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PngEncoder encoder = new PngEncoder(out, format)) {
+            encoder.writeHeader().writeImage(buffer);
+        }
+
+        assertThat(out.toByteArray()).isEqualTo(encode(format, image));
+        assertThat(buffer.hasRemaining()).isFalse();
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = ColorType.class, names = {"RGB", "RGB_ALPHA"})
+    void testArgbSourceMatchesByteArray(ColorType colorType) {
+        PngFormat format = PngFormat.of(300, 200, BitDepth.EIGHT, colorType);
+        int[] pixels = new Random(42).ints(300 * 200).toArray();
+        byte[] image = new byte[format.bytesPerImage()];
+        for (int i = 0, o = 0; i < pixels.length; i++) {
+            image[o++] = (byte) (pixels[i] >> 16);
+            image[o++] = (byte) (pixels[i] >> 8);
+            image[o++] = (byte) pixels[i];
+            if (colorType == ColorType.RGB_ALPHA) {
+                image[o++] = (byte) (pixels[i] >> 24);
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PngEncoder encoder = new PngEncoder(out, format, PngOptions.defaults().withThreads(2))) {
+            encoder.writeHeader().writeImage(pixels);
+        }
+
+        assertThat(inflateIDAT(out.toByteArray())).isEqualTo(inflateIDAT(encode(format, image)));
+    }
+
+    @Test
+    void testShortSourceMatchesByteArray() {
+        PngFormat format = PngFormat.of(300, 200, BitDepth.SIXTEEN, ColorType.GRAY_ALPHA);
+        short[] samples = new short[300 * 200 * 2];
+        Random random = new Random(42);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) random.nextInt();
+        }
+        byte[] image = new byte[format.bytesPerImage()];
+        ByteBuffer.wrap(image).asShortBuffer().put(samples);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PngEncoder encoder = new PngEncoder(out, format)) {
+            PngWriter writer = encoder.writeHeader();
+            writer.writeRows(samples, 0, 50);
+            writer.writeRows(samples, 50 * 600, 150);
+            writer.finish();
+        }
+
+        assertThat(out.toByteArray()).isEqualTo(encode(format, image));
+    }
+
+    @Test
+    void testArgbSourceThrowsOnUnsupportedFormat() {
+        PngFormat format = PngFormat.of(2, 2, BitDepth.EIGHT, ColorType.GRAY);
+        try (PngEncoder encoder = new PngEncoder(new ByteArrayOutputStream(), format)) {
+            PngWriter writer = encoder.writeHeader();
+            assertThatExceptionOfType(PngException.class)
+                .isThrownBy(() -> writer.writeImage(new int[4]));
+        }
+    }
+
+    @Test
+    void testChannelOutputMatchesStreamOutput() {
+        PngFormat format = PngFormat.of(300, 200, BitDepth.EIGHT, ColorType.RGB);
+        byte[] image = new byte[format.bytesPerImage()];
+        new Random(42).nextBytes(image);
+        PngOptions options = PngOptions.defaults().withIdatSize(1000);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PngEncoder encoder = new PngEncoder(Channels.newChannel(out), format, options)) {
+            encoder.writeHeader().writeImage(image);
+        }
+
+        assertThat(out.toByteArray()).isEqualTo(encode(format, image, options));
+    }
+
+    @Test
+    void testMappedOutputMatchesStreamOutput(@TempDir Path tempDir) throws IOException {
+        PngFormat format = PngFormat.of(300, 200, BitDepth.EIGHT, ColorType.RGB_ALPHA);
+        byte[] image = new byte[format.bytesPerImage()];
+        new Random(42).nextBytes(image);
+        long maxSize = 2L * format.bytesPerImage();
+
+        Path path = tempDir.resolve("mapped.png");
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            try (PngEncoder encoder = PngEncoder.mapped(file, maxSize, format, PngOptions.defaults())) {
+                encoder.writeHeader().writeImage(image);
+            }
+            assertThat(file.isOpen()).isTrue();
+            assertThat(file.position()).isEqualTo(file.size());
+        }
+
+        assertThat(Files.readAllBytes(path)).isEqualTo(encode(format, image));
+    }
+
+    @Test
+    void testMappedOutputSpansRegions(@TempDir Path tempDir) throws IOException {
+        PngFormat format = PngFormat.of(300, 200, BitDepth.EIGHT, ColorType.RGB_ALPHA);
+        byte[] image = new byte[format.bytesPerImage()];
+        new Random(42).nextBytes(image);
+        PngOptions options = PngOptions.defaults().withIdatSize(10_000);
+
+        Path path = tempDir.resolve("mapped.png");
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+            try (PngEncoder encoder = new PngEncoder(new MappedChannel(file, 2L * format.bytesPerImage(), 4096), format, options)) {
+                encoder.writeHeader().writeImage(image);
+            }
+        }
+
+        byte[] expected = encode(format, image, options);
+        byte[] actual = Files.readAllBytes(path);
+        assertThat(Arrays.copyOfRange(actual, 3, actual.length)).isEqualTo(expected);
+    }
+
+    @Test
+    void testStoredMatchesCompressed() {
+        PngFormat format = PngFormat.of(300, 400, BitDepth.EIGHT, ColorType.RGB_ALPHA);
+        byte[] image = new byte[format.bytesPerImage()];
+        new Random(42).nextBytes(image);
+        PngOptions options = PngOptions.defaults().withFilterStrategy(FilterStrategy.NONE);
+
+        byte[] stored = encode(format, image, options.withCompressionLevel(0).withIdatSize(100_000));
+
+        assertThat(inflateIDAT(stored)).isEqualTo(inflateIDAT(encode(format, image, options)));
+        assertThat(idatSizes(stored)).allMatch(size -> size <= 100_000);
+        assertValidCrcs(stored);
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideOptions")
+    void testRoundTripWithOptions(PngOptions options) throws IOException {
+        BufferedImage source = readImage("/png/basn6a16.png");
+        PngFormat format = fromImage(source);
+        byte[] expected = decode(source);
+
+        byte[] encoded = encode(format, expected, options);
+        byte[] actual = decode(ImageIO.read(new ByteArrayInputStream(encoded)));
+
+        assertThat(actual).isEqualTo(expected);
+        assertThat(idatSizes(encoded)).allMatch(size -> size <= options.idatSize());
+        assertValidCrcs(encoded);
+    }
+
+    private static Stream<PngOptions> provideOptions() {
+        PngOptions defaults = PngOptions.defaults();
+        return Stream.of(
+            defaults.withCompressionLevel(0),
+            defaults.withCompressionLevel(0).withIdatSize(6),
+            defaults.withCompressionLevel(0).withIdatSize(5),
+            defaults.withCompressionLevel(0).withThreads(2).withFilterStrategy(FilterStrategy.NONE),
+            defaults.withCompressionLevel(9),
+            defaults.withCompressionLevel(9).withCompressionStrategy(CompressionStrategy.FILTERED),
+            defaults.withCompressionStrategy(CompressionStrategy.HUFFMAN_ONLY),
+            defaults.withIdatSize(100),
+            defaults.withThreads(2).withCompressionLevel(9).withIdatSize(1000),
+            defaults.withCompressorType(CompressorType.JAVA).withIdatSize(100),
+            defaults.withCompressorType(CompressorType.JAVA).withThreads(2)
+        );
+    }
+
+    @ParameterizedTest
+    @EnumSource(FilterStrategy.class)
+    void testRoundTripWithFilterStrategy(FilterStrategy filterStrategy) throws IOException {
+        BufferedImage source = readImage("/png/basn2c08.png");
+        PngFormat format = fromImage(source);
+        byte[] expected = decode(source);
+
+        byte[] encoded = encode(format, expected, PngOptions.defaults().withFilterStrategy(filterStrategy));
+        byte[] actual = decode(ImageIO.read(new ByteArrayInputStream(encoded)));
+
+        assertThat(actual).isEqualTo(expected);
+    }
+
+    @Test
+    void testFixedFilterStrategyUsesSingleFilter() throws IOException {
+        BufferedImage source = readImage("/png/basn2c08.png");
+        PngFormat format = fromImage(source);
+
+        byte[] encoded = encode(format, decode(source), PngOptions.defaults().withFilterStrategy(FilterStrategy.PAETH));
+        byte[] filtered = inflateIDAT(encoded);
+
+        for (int i = 0; i < filtered.length; i += format.bytesPerRow() + 1) {
+            assertThat(filtered[i]).isEqualTo((byte) 4);
+        }
+    }
+
+    private static byte[] encode(PngFormat format, byte[] image) {
+        return encode(format, image, PngOptions.defaults());
+    }
+
+    private static byte[] encode(PngFormat format, byte[] image, PngOptions options) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PngEncoder encoder = new PngEncoder(out, format, options)) {
+            encoder.writeHeader().writeImage(image);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<Integer> idatSizes(byte[] png) {
+        List<Integer> sizes = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(png, 8, png.length - 8);
+        while (buffer.hasRemaining()) {
+            int length = buffer.getInt();
+            if (buffer.getInt() == 0x49444154) {
+                sizes.add(length);
+            }
+            buffer.position(buffer.position() + length + 4);
+        }
+        return sizes;
+    }
+
+    private static void assertValidCrcs(byte[] png) {
+        ByteBuffer buffer = ByteBuffer.wrap(png, 8, png.length - 8);
+        CRC32 crc32 = new CRC32();
+        while (buffer.hasRemaining()) {
+            int length = buffer.getInt();
+            crc32.reset();
+            crc32.update(png, buffer.position(), length + 4);
+            buffer.position(buffer.position() + length + 4);
+            assertThat(buffer.getInt()).isEqualTo((int) crc32.getValue());
+        }
+    }
+
+    private static byte[] inflateIDAT(byte[] png) {
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.wrap(png, 8, png.length - 8);
+        while (buffer.hasRemaining()) {
+            int length = buffer.getInt();
+            int type = buffer.getInt();
+            if (type == 0x49444154) {
+                idat.write(png, buffer.position(), length);
+            }
+            buffer.position(buffer.position() + length + 4);
+        }
+
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(idat.toByteArray()))) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Converts every pixel to 16-bit RGBA, so images can be compared independent of their format
+     */
+    private static int[] normalize(BufferedImage image) {
+        Raster raster = image.getRaster();
+        ColorModel colorModel = image.getColorModel();
+        int[] result = new int[image.getWidth() * image.getHeight() * 4];
+        int[] pixel = new int[raster.getNumBands()];
+        for (int y = 0, o = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++, o += 4) {
+                raster.getPixel(x, y, pixel);
+                if (colorModel instanceof IndexColorModel) {
+                    int argb = colorModel.getRGB(pixel[0]);
+                    result[o] = (argb >> 16 & 0xff) * 257;
+                    result[o + 1] = (argb >> 8 & 0xff) * 257;
+                    result[o + 2] = (argb & 0xff) * 257;
+                    result[o + 3] = (argb >>> 24) * 257;
+                    continue;
+                }
+
+                int[] samples = new int[pixel.length];
+                for (int i = 0; i < pixel.length; i++) {
+                    int max = (1 << raster.getSampleModel().getSampleSize(i)) - 1;
+                    samples[i] = (int) ((long) pixel[i] * 65535 / max);
+                }
+                boolean gray = samples.length <= 2;
+                boolean alpha = colorModel.hasAlpha();
+                result[o] = samples[0];
+                result[o + 1] = gray ? samples[0] : samples[1];
+                result[o + 2] = gray ? samples[0] : samples[2];
+                result[o + 3] = alpha ? samples[samples.length - 1] : 65535;
+            }
+        }
+        return result;
+    }
+
     private byte[] decode(BufferedImage image) {
         DataBuffer buffer = image.getData().getDataBuffer();
         if (buffer instanceof DataBufferByte) {
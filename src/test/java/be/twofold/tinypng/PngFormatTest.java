@@ -45,6 +45,32 @@ class PngFormatTest {
             .withMessage("bitDepth must not be null");
     }
 
+    @Test
+    void testThrowsOnNullInterlaceMethod() {
+        PngFormat format = PngFormat.of(1, 1, BitDepth.EIGHT, ColorType.GRAY);
+        assertThatNullPointerException()
+            .isThrownBy(() -> format.withInterlaceMethod(null))
+            .withMessage("interlaceMethod must not be null");
+    }
+
+    @Test
+    void testSizesOfHugeImage() {
+        PngFormat format = PngFormat.of(100_000, 100_000, BitDepth.SIXTEEN, ColorType.RGB_ALPHA);
+
+        assertThat(format.bytesPerRow()).isEqualTo(800_000);
+        assertThat(format.bytesPerImageLong()).isEqualTo(80_000_000_000L);
+        assertThatExceptionOfType(PngException.class)
+            .isThrownBy(format::bytesPerImage)
+            .withMessage("Image of 80000000000 bytes does not fit in an array, write it in rows or bands");
+    }
+
+    @Test
+    void testThrowsOnRowThatDoesNotFitInArray() {
+        assertThatExceptionOfType(PngException.class)
+            .isThrownBy(() -> PngFormat.of(Integer.MAX_VALUE, 1, BitDepth.EIGHT, ColorType.RGB))
+            .withMessage("width " + Integer.MAX_VALUE + " is too large, a row does not fit in an array");
+    }
+
     @ParameterizedTest
     @MethodSource("provideBitDepthAndColorTypeCombinations")
     void testThrowsOnInvalidBitDepthAndColourTypeCombination(BitDepth bitDepth, ColorType colorType, boolean valid) {
@@ -0,0 +1,114 @@
+package be.twofold.tinypng;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.params.*;
+import org.junit.jupiter.params.provider.*;
+
+import javax.imageio.*;
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.*;
+
+class PngImagesTest {
+
+    @ParameterizedTest
+    @ValueSource(ints = {
+        BufferedImage.TYPE_INT_RGB,
+        BufferedImage.TYPE_INT_ARGB,
+        BufferedImage.TYPE_INT_ARGB_PRE,
+        BufferedImage.TYPE_INT_BGR,
+        BufferedImage.TYPE_3BYTE_BGR,
+        BufferedImage.TYPE_4BYTE_ABGR,
+        BufferedImage.TYPE_BYTE_GRAY,
+        BufferedImage.TYPE_USHORT_GRAY,
+        BufferedImage.TYPE_BYTE_BINARY,
+        BufferedImage.TYPE_BYTE_INDEXED
+    })
+    void testRoundTrip(int type) throws IOException {
+        BufferedImage image = randomImage(type, 61, 37);
+
+        BufferedImage actual = roundTrip(image);
+
+        assertThat(actual.getRaster().getNumBands()).isEqualTo(image.getRaster().getNumBands());
+        assertPixelsEqual(actual, image);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {
+        BufferedImage.TYPE_INT_ARGB,
+        BufferedImage.TYPE_4BYTE_ABGR,
+        BufferedImage.TYPE_USHORT_GRAY,
+        BufferedImage.TYPE_BYTE_BINARY
+    })
+    void testRoundTripSubimage(int type) throws IOException {
+        BufferedImage image = randomImage(type, 61, 37).getSubimage(3, 5, 40, 20);
+
+        assertPixelsEqual(roundTrip(image), image);
+    }
+
+    @Test
+    void testUShortGrayKeepsSixteenBits() throws IOException {
+        BufferedImage image = randomImage(BufferedImage.TYPE_USHORT_GRAY, 16, 16);
+
+        BufferedImage actual = roundTrip(image);
+
+        assertThat(PngImages.format(image).bitDepth()).isEqualTo(BitDepth.SIXTEEN);
+        for (int y = 0; y < 16; y++) {
+            for (int x = 0; x < 16; x++) {
+                assertThat(actual.getRaster().getSample(x, y, 0)).isEqualTo(image.getRaster().getSample(x, y, 0));
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "4, 4, RGB",
+        "16, 16, RGB",
+        "8, 8, GRAY"
+    })
+    void testWriterWithOtherFormatIsRejected(int width, int height, ColorType colorType) {
+        BufferedImage image = randomImage(BufferedImage.TYPE_3BYTE_BGR, 8, 8);
+        PngFormat format = PngFormat.of(width, height, BitDepth.EIGHT, colorType);
+
+        try (PngEncoder encoder = new PngEncoder(new ByteArrayOutputStream(), format)) {
+            PngWriter writer = encoder.writeHeader();
+            assertThatIllegalArgumentException()
+                .isThrownBy(() -> PngImages.write(writer, image))
+                .withMessageContaining(format.toString())
+                .withMessageContaining(PngImages.format(image).toString());
+        }
+    }
+
+    private static BufferedImage roundTrip(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PngImages.write(image, out);
+        return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static BufferedImage randomImage(int type, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        WritableRaster raster = image.getRaster();
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                for (int b = 0; b < raster.getNumBands(); b++) {
+                    int bits = raster.getSampleModel().getSampleSize(b);
+                    raster.setSample(x, y, b, random.nextInt(1 << bits));
+                }
+            }
+        }
+        return image;
+    }
+
+    private static void assertPixelsEqual(BufferedImage actual, BufferedImage expected) {
+        assertThat(actual.getWidth()).isEqualTo(expected.getWidth());
+        assertThat(actual.getHeight()).isEqualTo(expected.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertThat(actual.getRGB(x, y)).isEqualTo(expected.getRGB(x, y));
+            }
+        }
+    }
+}
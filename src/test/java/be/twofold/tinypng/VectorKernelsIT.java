@@ -0,0 +1,91 @@
+package be.twofold.tinypng;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.params.*;
+import org.junit.jupiter.params.provider.*;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.zip.*;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Runs on the packaged jar with {@code --add-modules jdk.incubator.vector}, so the encoder picks the kernels
+ * the same way it does for users
+ */
+class VectorKernelsIT {
+
+    @Test
+    void testDefaultsAreVectorKernels() {
+        assertThat(FilterKernels.defaults().getClass().getName()).isEqualTo("be.twofold.tinypng.VectorFilterKernels");
+    }
+
+    @ParameterizedTest
+    @EnumSource(FilterStrategy.class)
+    void testEncoderMatchesScalarKernels(FilterStrategy strategy) throws DataFormatException {
+        PngFormat format = PngFormat.of(301, 97, BitDepth.EIGHT, ColorType.RGB);
+        byte[] image = image(format);
+        PngOptions options = PngOptions.defaults().withFilterStrategy(strategy);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PngEncoder encoder = new PngEncoder(out, format, options)) {
+            encoder.writeHeader().writeImage(image);
+        }
+
+        assertThat(inflateIDAT(out.toByteArray())).isEqualTo(filterScalar(format, options, image));
+    }
+
+    private static byte[] filterScalar(PngFormat format, PngOptions options, byte[] image) {
+        PngFilter filter = new PngFilter(format, options, ScalarFilterKernels.Instance);
+        int bytesPerRow = format.bytesPerRow();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int y = 0; y < format.height(); y++) {
+            out.write(filter.filter(image, y * bytesPerRow));
+            out.write(filter.bestRow(), format.bytesPerPixel(), bytesPerRow);
+        }
+        filter.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] image(PngFormat format) {
+        // Smooth gradients with some noise, and a few repeated rows
+        Random random = new Random(42);
+        byte[] image = new byte[format.bytesPerImage()];
+        int bytesPerRow = format.bytesPerRow();
+        for (int y = 0; y < format.height(); y++) {
+            if (y % 10 == 9) {
+                System.arraycopy(image, (y - 1) * bytesPerRow, image, y * bytesPerRow, bytesPerRow);
+                continue;
+            }
+            for (int x = 0; x < bytesPerRow; x++) {
+                image[y * bytesPerRow + x] = (byte) (x * 3 + y * 5 + random.nextInt(y % 3 * 40 + 1));
+            }
+        }
+        return image;
+    }
+
+    private static byte[] inflateIDAT(byte[] png) throws DataFormatException {
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.wrap(png, 8, png.length - 8);
+        while (buffer.hasRemaining()) {
+            int length = buffer.getInt();
+            int type = buffer.getInt();
+            if (type == 0x49444154) {
+                idat.write(png, buffer.position(), length);
+            }
+            buffer.position(buffer.position() + length + 4);
+        }
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(idat.toByteArray());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        while (!inflater.finished()) {
+            out.write(chunk, 0, inflater.inflate(chunk));
+        }
+        inflater.end();
+        return out.toByteArray();
+    }
+}